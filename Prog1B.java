@@ -1,5 +1,66 @@
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 /*
  * Prog1B.java -- This program was written to allow 
@@ -21,12 +82,70 @@ import java.util.Scanner;
  * length of 9 string fields in the record and adding those 
  * to the size of 4 integer fields in the record.
  * 
+ * The input file is memory-mapped through a RecordReader so 
+ * records are decoded straight from mapped memory instead of 
+ * through a separate system call for every field.
+ * 
  * Op Reqs: The program compiles independently and requires
  * a command line argument pointing to a binary file holding 
  * records of a specific type. The input file con be contained 
  * in the same location as the program or elsewhere if a path 
  * is given as the command line argument.
  * 
+ * Options given before the file name:
+ *  --index  build (or load) a sparse fence index over credits 
+ *           issued saved next to the input file as <file>.idx
+ *  --search <strategy>  search with ternary (the default), 
+ *           binary, interpolation, learned or async search
+ *  --batch <keys>  search for every value or min..max range 
+ *           in the keys file (- for standard input) and write 
+ *           the results as tab separated lines instead of the 
+ *           usual output and search (see BatchSearch)
+ *  --serve <port>  answer searches over HTTP on the local 
+ *           port instead of the usual output and search (see 
+ *           LookupServer)
+ *  --pread  read the file with positional reads instead of 
+ *           mapping it (see PositionalRecordReader)
+ *  --pool <MB>  read the file through a buffer pool of that 
+ *           many MB instead of mapping it (see BufferPool)
+ *  --cache <MB>  keep up to that many MB of search results, 
+ *           so repeated searches and --serve requests skip the 
+ *           file (see ResultCache)
+ *  --update <csv>, --delete <projectId,...>  record changed 
+ *           rows of the Offsets Database csv, or deleted 
+ *           projects, in a delta file next to the input file 
+ *           instead of rewriting it (see DeltaStore)
+ *  --compact  fold the delta files into the input file
+ *  --stats  print latency percentiles, probes and bytes read 
+ *           for searches, prints and scans when the program 
+ *           ends (see Metrics)
+ *  --id <projectId>, --country <name>, --state <name>, 
+ *  --status <name>  print the records with that value through 
+ *           a secondary index saved as <file>.<field> instead 
+ *           of the usual output and search
+ *  --where <filter>  print the records whose int fields meet 
+ *           the filter, such as "firstYear>=2015, 
+ *           creditsRetired>100000", skipping the blocks of 
+ *           records a zone map saved as <file>.zone rules out 
+ *           (see ZoneMap), instead of the usual output and search
+ *  --totals  with --where, print only the number of matching 
+ *           records and their credits totals
+ *  --scalar  test --where filters one record at a time even 
+ *           when the Vector API kernel can be used (see 
+ *           ScanKernel)
+ *  --aggregate <field>  print the credits issued, retired and 
+ *           remaining totals grouped by a string field or by 
+ *           firstYear, scanning the file in parallel
+ *  --load <csv>  build the binary file from a csv file of the 
+ *           Offsets Database instead of reading it
+ *  --columnar <out>  copy the input file into the columnar 
+ *           layout (see RecordLayout) instead of reading it
+ *  --dictionary <out>  copy the input file into the compact 
+ *           dictionary layout (see RecordLayout) instead of 
+ *           reading it
+ *  --bench <file> ...  time record decoding, search and scans 
+ *           on every file given (see Benchmark)
+ * 
  * Required features: Everything has been completed, the program 
  * correctly prints out the first, middle, and last five records 
  * or as many as it can and also allows for user search using 
@@ -42,45 +161,364 @@ import java.util.Scanner;
 public class Prog1B {
     public static void main(String[] args) {
         File fileRef = null; // Reference to input file
-        RandomAccessFile dataStream = null; // Reference to input stream of input file
+        RecordReader dataReader = null; // Reference to the memory-mapped input file
+        String fileName = null; // Path of the input file given on the command line
+        boolean useFenceIndex = false; // Whether --index was given
+        String searchMode = "ternary"; // Search strategy picked with --search
+        String batchName = null; // Keys file searched by --batch, or - for std.in
+        boolean positionalReads = false; // Whether --pread was given
+        int poolMegabytes = 0; // Size of the buffer pool for --pool, 0 for none
+        int cacheMegabytes = 0; // Size of the result cache for --cache, 0 for none
+        int port = -1; // Port to serve lookups on for --serve
+        String updateName = null; // Csv of changed rows for --update
+        String deleteIds = null; // Comma separated projectIds for --delete
+        boolean compact = false; // Whether --compact was given
+        String lookupField = null; // String field to look up through a secondary index
+        String lookupValue = null; // Value to look up in that field
+        String whereFilter = null; // Conditions on the int fields for --where
+        boolean totalsOnly = false; // Whether --totals was given
+        boolean scalarOnly = false; // Whether --scalar was given
+        String groupField = null; // Field to group totals by for --aggregate
+        String csvName = null; // Csv file to build the binary file from for --load
+        String columnarName = null; // File to copy the input into for --columnar
+        String dictionaryName = null; // File to copy the input into for --dictionary
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--bench")) {
+                Benchmark.run(Arrays.copyOfRange(args, i + 1, args.length));
+                return;
+            } else if (args[i].equals("--index")) {
+                useFenceIndex = true;
+            } else if (i + 1 < args.length && args[i].equals("--search")) {
+                searchMode = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--batch")) {
+                batchName = args[++i];
+            } else if (args[i].equals("--pread")) {
+                positionalReads = true;
+            } else if (i + 1 < args.length && args[i].equals("--pool")) {
+                poolMegabytes = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--cache")) {
+                cacheMegabytes = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--serve")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && args[i].equals("--update")) {
+                updateName = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--delete")) {
+                deleteIds = args[++i];
+            } else if (args[i].equals("--compact")) {
+                compact = true;
+            } else if (args[i].equals("--stats")) {
+                Metrics.enable();
+            } else if (i + 1 < args.length && (args[i].equals("--id") || args[i].equals("--country") 
+                    || args[i].equals("--state") || args[i].equals("--status"))) {
+                lookupField = args[i].equals("--id") ? "projectId" : args[i].substring(2);
+                lookupValue = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--where")) {
+                whereFilter = args[++i];
+            } else if (args[i].equals("--totals")) {
+                totalsOnly = true;
+            } else if (args[i].equals("--scalar")) {
+                scalarOnly = true;
+            } else if (i + 1 < args.length && args[i].equals("--aggregate")) {
+                groupField = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--load")) {
+                csvName = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--columnar")) {
+                columnarName = args[++i];
+            } else if (i + 1 < args.length && args[i].equals("--dictionary")) {
+                dictionaryName = args[++i];
+            } else {
+                fileName = args[i];
+            }
+        }
 
-        if (args.length == 0) { // Check to make sure file was provided as argument
+        if (fileName == null) { // Check to make sure file was provided as argument
             System.out.println("Error: .bin file required as input.");
             System.exit(-1);
+        } else if (csvName != null) { // The binary file is being written rather than read
+            BulkLoader.load(new File(csvName), new File(fileName), BulkLoader.defaultRunBytes());
+            return;
+        } else if (updateName != null || deleteIds != null) { // Changes only go to a new delta file
+            DeltaStore deltas = DeltaStore.open(new File(fileName), null); // Changes made so far
+            if (updateName != null) {
+                deltas.putAll(new File(updateName));
+            }
+            if (deleteIds != null) {
+                for (String projectId : deleteIds.split(",")) {
+                    deltas.delete(projectId.trim());
+                }
+            }
+            deltas.flush();
+            return;
+        } else if (compact) {
+            if (!DeltaStore.compact(new File(fileName))) {
+                System.out.println("Another compaction of " + fileName + " is running; this one was skipped.");
+            }
+            return;
         } else {
             try {
-            fileRef = new File(args[0]);
-            dataStream = new RandomAccessFile(fileRef, "rw");
-            } catch (FileNotFoundException e) {
+            fileRef = new File(fileName);
+            if (poolMegabytes > 0) {
+                dataReader = new BufferPool(fileRef, (long) poolMegabytes << 20);
+            } else {
+                dataReader = positionalReads ? new PositionalRecordReader(fileRef) : new RecordReader(fileRef);
+            }
+            } catch (IOException e) {
             System.out.println("I/O ERROR: Something went wrong with the "
-                             + "creation of the RandomAccessFile object.");
+                             + "creation of the RecordReader object.");
             System.exit(-1);
             }
         }
 
+        // Secondary index lookups replace the usual output
+        if (lookupField != null) {
+            printLookup(fileRef, dataReader, lookupField, lookupValue);
+            dataReader.close();
+            return;
+        }
+
+        if (whereFilter != null) {
+            printFiltered(fileRef, dataReader, whereFilter, totalsOnly, ScanKernel.load(scalarOnly));
+            dataReader.close();
+            return;
+        }
+
+        if (groupField != null) {
+            printAggregates(dataReader, groupField);
+            dataReader.close();
+            return;
+        }
+
+        if (columnarName != null) {
+            RecordLayout.writeColumnar(dataReader, new File(columnarName));
+            dataReader.close();
+            return;
+        }
+
+        if (dictionaryName != null) {
+            RecordLayout.writeDictionary(dataReader, new File(dictionaryName));
+            dataReader.close();
+            return;
+        }
+
+        FenceIndex fences = useFenceIndex ? FenceIndex.open(fileRef, dataReader) : null; // Optional sparse index
+        ResultCache cache = cacheMegabytes > 0 
+            ? new ResultCache(fileRef, dataReader, (long) cacheMegabytes << 20) : null; // Optional result cache
+
+        // Searches see the changes in the delta files; enough of them are folded in meanwhile
+        DeltaStore deltas = DeltaStore.open(fileRef, Prog1B.getFieldLengths(dataReader)); // Changes to the file
+        if (deltas.getNumFiles() >= DeltaStore.COMPACT_FILES) {
+            DeltaStore.compactInBackground(fileRef);
+        }
+
+        if (batchName != null) {
+            BatchSearch.run(dataReader, fences, searchMode, batchName, deltas);
+            dataReader.close();
+            return;
+        }
+
+        // The server's threads keep the program (and the file) open
+        if (port >= 0) {
+            LookupServer.run(dataReader, fences, searchMode, port, cache, deltas);
+            return;
+        }
+
         // Main program functions
-        printRecordGroups(dataStream);
-        userSearch(dataStream);
+        printRecordGroups(dataReader);
+        userSearch(dataReader, fences, searchMode, deltas, cache);
+    }
+
+    /*
+     * static void printLookup -- prints every record whose 
+     * projectId, country, state or status equals the given 
+     * value, using the secondary index for that field.
+     * 
+     * @return: none
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+     * String fieldName -- name of the field to look up
+     * String value -- the value to look for
+    */
+    static void printLookup(File fileRef, RecordReader dataReader, String fieldName, String value) {
+        RecordView view = new RecordView(dataReader, RecordLayout.of(dataReader)); // View over the matches
+        int field = RecordView.fieldNumber(fieldName); // Footer index of the field
+
+        long[] matches; // Record numbers of the matching records
+        if (field == 0) {
+            try (HashIndex index = HashIndex.open(fileRef, dataReader)) {
+                matches = index.lookup(view, value);
+            }
+        } else {
+            try (PostingIndex index = PostingIndex.open(fileRef, dataReader, field)) {
+                matches = index.lookup(value);
+            }
+        }
+
+        if (matches.length == 0) {
+            System.out.println("Search returned 0 records for criteria [" + fieldName + ": " 
+            + value + "].");
+        }
+        for (long match : matches) {
+            view.moveTo(match);
+            System.out.println(view.materialize());
+        }
+    }
+
+    /*
+     * static void printFiltered -- prints every record whose 
+     * int fields meet the filter, or with totalsOnly just the 
+     * number of them and their credits totals. Only the blocks 
+     * of records the zone map can't rule out are scanned, and 
+     * their int fields are tested by the ScanKernel before any 
+     * DataRecord is made.
+     * 
+     * @return: none
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+     * String filter -- conditions on the int fields (see ZoneMap)
+     * boolean totalsOnly -- whether --totals was given
+     * ScanKernel kernel -- tests the records
+    */
+    static void printFiltered(File fileRef, RecordReader dataReader, String filter, boolean totalsOnly, 
+            ScanKernel kernel) {
+        long[][] bounds = ZoneMap.parseFilter(filter); // Values each int field may have
+        if (bounds == null) {
+            System.out.println("Error: couldn't understand the filter " + filter + ".");
+            System.exit(-1);
+        }
+        int[] lows = new int[bounds.length]; // Smallest value each int field may have
+        int[] highs = new int[bounds.length]; // Largest value each int field may have
+        boolean possible = true; // Whether any int value meets every condition
+        for (int f = 0; f < bounds.length; f++) {
+            possible &= bounds[f][0] <= bounds[f][1] && bounds[f][0] <= Integer.MAX_VALUE 
+                && bounds[f][1] >= Integer.MIN_VALUE;
+            lows[f] = (int) Math.max(bounds[f][0], Integer.MIN_VALUE);
+            highs[f] = (int) Math.min(bounds[f][1], Integer.MAX_VALUE);
+        }
+
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        ZoneMap zones = ZoneMap.open(fileRef, dataReader); // Value ranges of every block
+        ArrayList<long[]> ranges = possible ? zones.candidateRanges(bounds) : new ArrayList<>(); // May match
+        long scanned = 0; // Records in those ranges
+        long matched = 0; // Records that met the filter
+        long[] sums = new long[bounds.length]; // Sum of each int field of those records
+        for (long[] range : ranges) {
+            matched += filterRecords(dataReader, layout, range[0], range[1], kernel, lows, highs, !totalsOnly, sums);
+            scanned += range[1] - range[0];
+        }
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        long read = scanned; // Records the zone map couldn't rule out
+        Metrics.report(() -> String.format("zones    %d blocks, %d of %d records read (%.1f%% skipped)", 
+            zones.getNumBlocks(), read, numRecords, 100.0 * (numRecords - read) / Math.max(1, numRecords)));
+        Metrics.report(() -> "kernel   " + kernel.describe());
+
+        if (totalsOnly) {
+            System.out.println("[" + filter + "][" + matched + "][" + sums[0] + "][" 
+            + sums[1] + "][" + sums[2] + "]");
+        } else if (matched == 0) {
+            System.out.println("Search returned 0 records for criteria [" + filter + "].");
+        }
+    }
+
+    /*
+     * static long filterRecords -- tests the records with 
+     * index first up to (not including) end with a ScanKernel, 
+     * a batch of gathered int fields at a time, and prints the 
+     * records it marks if asked to.
+     * 
+     * @return: long holding the number of records marked
+     * @params: RecordReader reader -- the data file.
+     * RecordLayout layout -- where the fields of each record are.
+     * long first -- index of the first record to test
+     * long end -- index just past the last record to test
+     * ScanKernel kernel -- tests the records
+     * int[] lows -- smallest value each int field may have
+     * int[] highs -- largest value each int field may have
+     * boolean print -- whether to print the marked records
+     * long[] sums -- the sums of the marked records' int 
+     *  fields are added to it
+    */
+    static long filterRecords(RecordReader reader, RecordLayout layout, long first, long end, 
+            ScanKernel kernel, int[] lows, int[] highs, boolean print, long[] sums) {
+        RecordScan scan = new RecordScan(reader, layout, first, end, 
+            print ? RecordScan.ALL_FIELDS : RecordScan.INT_FIELDS, null); // Reads the range
+        RecordView view = scan.getView(); // View the scan moves
+        Metrics.Span span = Metrics.begin(Metrics.SCAN, view); // Times the scan of this range
+        int[][] columns = new int[lows.length][ScanKernel.BATCH_RECORDS]; // Int fields of a batch
+        boolean[] selected = new boolean[ScanKernel.BATCH_RECORDS]; // Which records of it were marked
+        long matched = 0; // Records marked so far
+        int count; // Records in the current batch
+        while ((count = scan.nextBatch(columns)) > 0) {
+            int marked = kernel.filter(columns, count, lows, highs, selected, sums); // Marked in this batch
+            matched += marked;
+            long batchStart = view.getIndex(); // Record number of the first record of the batch
+            for (int i = 0; i < count && print && marked > 0; i++) {
+                if (selected[i]) {
+                    view.moveTo(batchStart + i);
+                    System.out.println(view.materialize());
+                }
+            }
+        }
+        scan.close();
+        Metrics.end(span, end - first);
+        return matched;
+    }
+
+    /*
+     * static void printAggregates -- prints the number of 
+     * records and the credits issued, retired and remaining 
+     * totals for every value of a field.
+     * 
+     * The file is split into ranges of records that are scanned 
+     * in parallel on the common ForkJoinPool and the partial 
+     * totals of each range are merged at the end.
+     * 
+     * @return: none
+     * @params: RecordReader dataReader -- the mapped data file.
+     * String groupField -- name of a string field or "firstYear"
+    */
+    static void printAggregates(RecordReader dataReader, String groupField) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        int field = RecordView.fieldNumber(groupField); // Footer index of the field, -1 for firstYear
+
+        if (field == -1 && !groupField.equals("firstYear")) {
+            System.out.println("Error: can't group records by " + groupField + ".");
+            System.exit(-1);
+        }
+
+        HashMap<String, long[]> totals = ForkJoinPool.commonPool().invoke(
+            new AggregateTask(dataReader, layout, field, 0, layout.getNumRecords())); // Totals per value
+        for (Map.Entry<String, long[]> entry : new TreeMap<>(totals).entrySet()) {
+            long[] sums = entry.getValue(); // Count, issued, retired and remaining
+            System.out.println("[" + entry.getKey() + "][" + sums[0] + "][" + sums[1] + "][" 
+            + sums[2] + "][" + sums[3] + "]");
+        }
     }
 
     /*
      * static void getFieldLengths -- get the lengths of 
      * each string field of a record by reading information
-     * stored at the end of an input file
+     * stored at the end of an input file. In a columnar or 
+     * dictionary file they are followed by a magic number.
      * 
      * @return: int[] -- array holding the lengths of 
      *  each string field in a specific order
-     * @params: dataStream -- reference to binary file
-     * to be read from
+     * @params: dataReader -- reference to the mapped 
+     * binary file to be read from
     */
-    static int[] getFieldLengths(RandomAccessFile dataStream) {
+    static int[] getFieldLengths(RecordReader dataReader) {
         try {
-            long fileLength = dataStream.length(); // Length of the input file
-            dataStream.seek(fileLength - (9*4));
-            int[] fieldLengths = {dataStream.readInt(), dataStream.readInt(), 
-                dataStream.readInt(), dataStream.readInt(), dataStream.readInt(), 
-                dataStream.readInt(), dataStream.readInt(), dataStream.readInt(), 
-                dataStream.readInt()}; // Array used to store length information being read from the file
+            long footerStart = dataReader.length() - (9*4); // Position of the first field length
+            if (RecordLayout.isColumnar(dataReader) || RecordLayout.isDictionary(dataReader)) {
+                footerStart -= 4;
+            }
+            if (footerStart < 0) {
+                throw new IOException("File is too short to hold field lengths.");
+            }
+            int[] fieldLengths = new int[9]; // Array used to store length information being read from the file
+            for (int i = 0; i < fieldLengths.length; i++) {
+                fieldLengths[i] = dataReader.getInt(footerStart + i*4);
+            }
             return fieldLengths;
         } catch (IOException e) {
             System.out.println("I/O ERROR: Error accessing file to get field lengths.");
@@ -107,7 +545,7 @@ public class Prog1B {
 
     /*
      * static void getNumRecords -- get the total number 
-     * of records in the input file
+     * of records in a row layout input file
      * 
      * @return: long holding the total number of records
      * @params: recordLength -- the length of a single 
@@ -123,248 +561,519 @@ public class Prog1B {
      * first, middle, and last 5 records in the input file
      * 
      * @return: none
-     * @params: RandomAccessFile stream -- a reference to 
-     *  the file being read from.
+     * @params: RecordReader dataReader -- a reference to 
+     *  the mapped file being read from.
     */
-    static void printRecordGroups(RandomAccessFile dataStream) {
-        try {
-            int[] fieldLengths = getFieldLengths(dataStream); // Lengths of string fields in records
-            int recordLength = getRecordLength(fieldLengths); // Total length of a record
-            long numberOfRecords = getNumRecords(recordLength, dataStream.length()); // Number of records in the file
+    static void printRecordGroups(RecordReader dataReader) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numberOfRecords = layout.getNumRecords(); // Number of records in the file
+        Metrics.Span span = Metrics.begin(Metrics.PRINT, null); // Times the printing
+        long printed = 0; // Records printed by the three groups
 
-            System.out.println("First five records");
-            printFirstFive(dataStream, fieldLengths, numberOfRecords);
+        System.out.println("First five records");
+        printed += printFirstFive(dataReader, layout, numberOfRecords);
 
-            System.out.println("Last five records");
-            printLastFive(dataStream, fieldLengths, numberOfRecords, recordLength);
+        System.out.println("Last five records");
+        printed += printLastFive(dataReader, layout, numberOfRecords);
 
-            System.out.println("Middle five records");
-            printMiddleFive(dataStream, fieldLengths, numberOfRecords, recordLength);
+        System.out.println("Middle five records");
+        printed += printMiddleFive(dataReader, layout, numberOfRecords);
 
-            System.out.println("Number of Records");
-            System.out.println(numberOfRecords);
-        } catch (IOException e) {
-            System.out.println("I/O ERROR: Couldn't get the file's length.");
-            System.exit(-1);
-        }
+        System.out.println("Number of Records");
+        System.out.println(numberOfRecords);
+        Metrics.end(span, printed);
     }
 
     /*
-     * static void ternarySearch -- performs recursive 
-     * ternary search of the input file for a specific record
+     * static int ternarySearch -- performs recursive 
+     * ternary search of the input file for the first record 
+     * whose credits issued value is not less than the key.
      * 
-     * @return: int used to indicate record was found
-     * @params: RandomAccessFile dataStream -- a reference to 
-     *  the file being read from.
-     * int[] fieldLengths -- the lengths of each 
-     *  string field in the record. Used to create 
-     *  correctly sized byte containers for the 
-     *  data being read.
-     * int recordLength -- the length of each record in the file.
-     * int lowerBound -- the index of the lower bound in the search
-     * int upperBound -- the index of the upper bound for the search
-     * int val -- the value we are searching for
+     * Because the file can hold many records with the same 
+     * credits issued value, the search narrows down to the 
+     * lower bound of the key instead of stopping at whichever 
+     * match it probes first. Searching for key + 1 gives the 
+     * upper bound, and every match lies between the two.
+     * 
+     * Probes only look at the creditsIssued field through a 
+     * reusable RecordView, so no DataRecord is created.
+     * 
+     * @return: long holding the index of the first record with 
+     *  credits issued >= key, or upperBound + 1 if there is none
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file used to look at the divider records.
+     * long lowerBound -- the index of the lower bound in the search
+     * long upperBound -- the index of the upper bound for the search
+     * long key -- the value we are searching for
     */
-    static int ternarySearch(RandomAccessFile dataStream, int[] fieldLengths, int recordLength, 
-    int lowerBound, int upperBound, int val) {
+    static long ternarySearch(RecordView probe, long lowerBound, long upperBound, long key) {
+        probe.countLevel();
         // Base case
         if (lowerBound > upperBound) {
-            return -1;
+            return lowerBound;
         }
 
-        int lowerDivider = lowerBound + (upperBound - lowerBound) / 3; // Lower value splitting "array" in three
-        int upperDivider = upperBound - (upperBound - lowerBound) / 3; // Upper value splitting "array" in three
+        long lowerDivider = lowerBound + (upperBound - lowerBound) / 3; // Lower value splitting "array" in three
+        long upperDivider = upperBound - (upperBound - lowerBound) / 3; // Upper value splitting "array" in three
 
-        DataRecord lowerRecord = new DataRecord(); // Record holding the information found at the lower divider
-        DataRecord upperRecord = new DataRecord(); // Record holding the information found at the upper divider
+        probe.moveTo(lowerDivider);
+        if (key <= probe.getCreditsIssued()) {
+            return ternarySearch(probe, lowerBound, lowerDivider - 1, key);
+        }
 
-        try {
-            dataStream.seek(lowerDivider * recordLength);
-            lowerRecord.fetchObject(dataStream, fieldLengths);
-            if (lowerRecord.getCreditsIssued() == val) {
-                System.out.println(lowerRecord);
-                return 0;
+        probe.moveTo(upperDivider);
+        if (key <= probe.getCreditsIssued()) {
+            return ternarySearch(probe, lowerDivider + 1, upperDivider - 1, key);
+        }
+        return ternarySearch(probe, upperDivider + 1, upperBound, key);
+    }
+
+    /*
+     * static void batchSearch -- finds the lower bound of 
+     * every key in a sorted key set with one shared ternary 
+     * search of the input file.
+     * 
+     * Each divider record is read once for the whole key set 
+     * and the keys are split into three groups around the two 
+     * divider values. Each group then continues in the matching 
+     * third of the file, so the top levels of the search are 
+     * read once per batch instead of once per key.
+     * 
+     * @return: none
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file used to look at the divider records.
+     * long lowerBound -- the index of the lower bound in the search
+     * long upperBound -- the index of the upper bound for the search
+     * long[] keys -- the keys being searched for, sorted ascending
+     * int keyStart -- index of the first key in this group
+     * int keyEnd -- index just past the last key in this group
+     * long[] bounds -- receives the ternarySearch result of each key
+    */
+    static void batchSearch(RecordView probe, long lowerBound, long upperBound, 
+    long[] keys, int keyStart, int keyEnd, long[] bounds) {
+        probe.countLevel();
+        // Base cases
+        if (keyStart >= keyEnd) {
+            return;
+        }
+        if (lowerBound > upperBound) {
+            Arrays.fill(bounds, keyStart, keyEnd, lowerBound);
+            return;
+        }
+
+        long lowerDivider = lowerBound + (upperBound - lowerBound) / 3; // Lower value splitting "array" in three
+        long upperDivider = upperBound - (upperBound - lowerBound) / 3; // Upper value splitting "array" in three
+
+        probe.moveTo(lowerDivider);
+        int lowerSplit = splitKeys(keys, keyStart, keyEnd, probe.getCreditsIssued()); // First key past the lower divider
+        batchSearch(probe, lowerBound, lowerDivider - 1, keys, keyStart, lowerSplit, bounds);
+        if (lowerSplit == keyEnd) {
+            return;
+        }
+
+        probe.moveTo(upperDivider);
+        int upperSplit = splitKeys(keys, lowerSplit, keyEnd, probe.getCreditsIssued()); // First key past the upper divider
+        batchSearch(probe, lowerDivider + 1, upperDivider - 1, keys, lowerSplit, upperSplit, bounds);
+        batchSearch(probe, upperDivider + 1, upperBound, keys, upperSplit, keyEnd, bounds);
+    }
+
+    /*
+     * static int splitKeys -- finds the first key in a 
+     * sorted group of keys that is greater than a divider value.
+     * 
+     * @return: int holding the index of that key, or keyEnd
+     * @params: long[] keys -- the keys being searched for, sorted ascending
+     * int keyStart -- index of the first key in the group
+     * int keyEnd -- index just past the last key in the group
+     * int dividerVal -- credits issued value of the divider record
+    */
+    static int splitKeys(long[] keys, int keyStart, int keyEnd, int dividerVal) {
+        while (keyStart < keyEnd) {
+            int mid = (keyStart + keyEnd) >>> 1; // Middle key of what is left
+            if (keys[mid] <= dividerVal) {
+                keyStart = mid + 1;
+            } else {
+                keyEnd = mid;
             }
+        }
+        return keyStart;
+    }
 
-            dataStream.seek(upperDivider * recordLength);
-            upperRecord.fetchObject(dataStream, fieldLengths);
-            if (upperRecord.getCreditsIssued() == val) {
-                System.out.println(upperRecord);
-                return 0;
+    /*
+     * static long[] lookupBounds -- batch lookup of the lower 
+     * bound of any number of keys, given in any order.
+     * 
+     * @return: long[] holding the ternarySearch result of each key, 
+     *  in the same order as the keys were given
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file.
+     * long numRecords -- the number of records in the file.
+     * FenceIndex fences -- sparse index to start each search 
+     *  from, or null to search the whole file
+     * SearchStrategy strategy -- how to search the whole file
+     * long[] keys -- the keys being searched for
+    */
+    static long[] lookupBounds(RecordView probe, long numRecords, FenceIndex fences, 
+    SearchStrategy strategy, long[] keys) {
+        Metrics.Span span = Metrics.begin(Metrics.SEARCH, probe); // Times the lookup
+        long[] sortedKeys = Arrays.stream(keys).sorted().distinct().toArray(); // Each key searched for once
+        long[] sortedBounds = new long[sortedKeys.length]; // Results in sorted key order
+        if (fences != null) {
+            for (int i = 0; i < sortedKeys.length; i++) {
+                sortedBounds[i] = fences.search(probe, numRecords, sortedKeys[i]);
             }
+        } else {
+            strategy.lowerBounds(probe, numRecords, sortedKeys, sortedBounds);
+        }
 
-            if (val < lowerRecord.getCreditsIssued()) {
-                return ternarySearch(dataStream, fieldLengths, recordLength, lowerBound, lowerDivider - 1, val);
-            } else if (val > upperRecord.getCreditsIssued()) {
-                return ternarySearch(dataStream, fieldLengths, recordLength, upperDivider + 1, upperBound, val);
-            } else {
-                return ternarySearch(dataStream, fieldLengths, recordLength, lowerDivider + 1,  upperDivider - 1, val);
+        long[] bounds = new long[keys.length]; // Results in the caller's key order
+        for (int i = 0; i < keys.length; i++) {
+            bounds[i] = sortedBounds[Arrays.binarySearch(sortedKeys, keys[i])];
+        }
+        Metrics.end(span, sortedKeys.length);
+        return bounds;
+    }
+
+    /*
+     * static int[] parseQuery -- turns a search value typed by 
+     * the user into the range of credits issued it stands for. 
+     * A plain value v stands for v..v.
+     * 
+     * @return: int[] holding the smallest and largest value
+     * @params: String token -- a value or a range written min..max
+    */
+    static int[] parseQuery(String token) {
+        int rangeSplit = token.indexOf(".."); // Position of the range separator, if any
+        if (rangeSplit >= 0) {
+            return new int[] {Integer.parseInt(token.substring(0, rangeSplit)), 
+                Integer.parseInt(token.substring(rangeSplit + 2))};
+        }
+        int val = Integer.parseInt(token); // The single value searched for
+        return new int[] {val, val};
+    }
+
+    /*
+     * static long printRecords -- prints the records with 
+     * index first up to (not including) end in one 
+     * sequential pass (a RecordScan), merged in credits issued 
+     * order with the live delta records in the range. Records 
+     * replaced or deleted by a delta are filtered out before 
+     * they are decoded, and on equal credits the records of 
+     * the file come first, as after compaction.
+     * 
+     * @return: long holding the number of records printed
+     * @params: RecordReader reader -- the data file.
+     * RecordLayout layout -- where the fields of each record are.
+     * long first -- index of the first record to print
+     * long end -- index just past the last record to print
+     * DeltaStore deltas -- changes made since the file was written
+     * int min -- smallest credits issued value in the range
+     * int max -- largest credits issued value in the range
+     * ArrayList<DataRecord> kept -- receives every record 
+     *  printed, for the ResultCache, or null
+    */
+    static long printRecords(RecordReader reader, RecordLayout layout, long first, long end, 
+            DeltaStore deltas, int min, int max, ArrayList<DataRecord> kept) {
+        RecordScan scan = new RecordScan(reader, layout, first, end, RecordScan.ALL_FIELDS, 
+            deltas.isEmpty() ? null : view -> !deltas.shadows(view.getProjectId().stripTrailing()));
+        Metrics.Span span = Metrics.begin(Metrics.PRINT, scan.getView()); // Times the printing
+        long printed = 0; // Records printed so far
+        int d = deltas.lowerBound(min); // Next live delta record to print
+        int dEnd = deltas.lowerBound((long) max + 1); // Just past the last one in the range
+        while (scan.hasNext()) {
+            DataRecord record = scan.next(); // Next record of the file that is still live
+            for (; d < dEnd && deltas.getLive(d).getCreditsIssued() < record.getCreditsIssued(); d++, printed++) {
+                printRecord(deltas.getLive(d), kept);
             }
-        } catch (IOException e) {
-            System.out.println("Error: Error during user search.");
-            System.exit(-1);
+            printRecord(record, kept);
+            printed++;
+        }
+        scan.close();
+        for (; d < dEnd; d++, printed++) {
+            printRecord(deltas.getLive(d), kept);
+        }
+        Metrics.end(span, printed);
+        return printed;
+    }
+
+    /*
+     * static void printRecord -- prints a record and adds it 
+     * to kept unless that is null.
+    */
+    static void printRecord(DataRecord record, ArrayList<DataRecord> kept) {
+        System.out.println(record);
+        if (kept != null) {
+            kept.add(record);
         }
-        return 0;
     }
 
     /*
-     * static void userSearch -- search for a record in 
+     * static void userSearch -- search for the records in 
      * the input file with a credits issued value 
-     * corresponding to the user input value
+     * corresponding to the user input value. A value can 
+     * also be given as a range written min..max.
      * 
      * @return: none
-     * @params: RandomAccessFile stream -- a reference to 
-     *  the file being read from.
+     * @params: RecordReader dataReader -- a reference to 
+     *  the mapped file being read from.
+     * FenceIndex fences -- sparse index over the file, or null
+     * String searchMode -- name of the search strategy to use
+     * DeltaStore deltas -- changes made since the file was written
+     * ResultCache cache -- results of earlier queries, or null
     */
-    static void userSearch(RandomAccessFile dataStream) {
-        try {
-            int[] fieldLengths = getFieldLengths(dataStream); // Lengths of the fields of the records in the file
-            int recordLength = getRecordLength(fieldLengths); // Total length of a record in the file
-            long numRecords = getNumRecords(recordLength, dataStream.length()); // Number of records in the file
+    static void userSearch(RecordReader dataReader, FenceIndex fences, String searchMode, DeltaStore deltas, 
+            ResultCache cache) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        RecordView probe = new RecordView(dataReader, layout); // Reused by every search
+        SearchStrategy strategy = SearchStrategy.forName(searchMode, probe, numRecords); // How to search
+        if (strategy == null) {
+            System.out.println("Error: unknown search strategy " + searchMode + ".");
+            System.exit(-1);
+        }
 
-            Scanner inputReader = new Scanner(System.in); // Scanner used to read from std.in
-            Scanner stringReader; // Scanner used to read strings
+        Scanner inputReader = new Scanner(System.in); // Scanner used to read from std.in
+        Scanner stringReader; // Scanner used to read strings
 
-            // Ask for user input until -1 is used to exit
-            while (true) {
-                System.out.println("Search for records by credits issued:");
-                String input = inputReader.nextLine(); // Grab the user input by line
-                stringReader = new Scanner(input);
-                try {
-                    int userVal; // Current value from user to search with
-                    // User can input multiple values so read them one at a time
-                    while ((userVal = stringReader.nextInt()) != -1) {
-                        if (ternarySearch(dataStream, fieldLengths, recordLength, 0, (int) numRecords - 1, userVal) == -1){
-                            System.out.println("Search returned 0 records for criteria [Total Credits Issued: " 
-                            + userVal + "]. Please restart search.");
-                            break;
+        // Ask for user input until -1 is used to exit
+        while (true) {
+            System.out.println("Search for records by credits issued:");
+            String input = inputReader.nextLine(); // Grab the user input by line
+            stringReader = new Scanner(input);
+            try {
+                ArrayList<String> queries = new ArrayList<>(); // Values and ranges given on this line
+                boolean shutdown = false; // Whether -1 was given after the queries
+                // User can input multiple values so read them all before searching
+                while (stringReader.hasNext()) {
+                    String token = stringReader.next(); // Current value or min..max range from user
+                    if (token.equals("-1")) {
+                        shutdown = true;
+                        break;
+                    }
+                    try {
+                        parseQuery(token);
+                    } catch (NumberFormatException e) { // Stop at a non integer value
+                        break;
+                    }
+                    queries.add(token);
+                }
+
+                // Answer what the cache can, then search for the lower bound of every other min and max + 1 in one batch
+                DataRecord[][] cached = new DataRecord[queries.size()][]; // Cached result of each query, or null
+                int numSearched = 0; // Queries not in the cache
+                for (int i = 0; i < queries.size(); i++) {
+                    int[] range = parseQuery(queries.get(i)); // Values covered by the query
+                    cached[i] = cache == null ? null : cache.get(range[0], range[1]);
+                    numSearched += cached[i] == null ? 1 : 0;
+                }
+                long[] keys = new long[numSearched * 2]; // Both bounds of each query searched
+                for (int i = 0, k = 0; i < queries.size(); i++) {
+                    if (cached[i] == null) {
+                        int[] range = parseQuery(queries.get(i)); // Values covered by the query
+                        keys[k++] = range[0];
+                        keys[k++] = (long) range[1] + 1;
+                    }
+                }
+                long[] bounds = lookupBounds(probe, numRecords, fences, strategy, keys); // Lower bound of every key
+
+                for (int i = 0, k = 0; i < queries.size(); i++) {
+                    int[] range = parseQuery(queries.get(i)); // Values covered by the query
+                    long printed; // Records printed for the query
+                    if (cached[i] != null) {
+                        Metrics.Span span = Metrics.begin(Metrics.PRINT, null); // Times the printing
+                        for (DataRecord record : cached[i]) {
+                            System.out.println(record);
+                        }
+                        printed = cached[i].length;
+                        Metrics.end(span, printed);
+                    } else {
+                        long first = bounds[k++]; // First record of the file in the range
+                        long end = bounds[k++]; // Just past its last one
+                        ArrayList<DataRecord> kept = cache != null && cache.admits(end - first 
+                            + deltas.lowerBound((long) range[1] + 1) - deltas.lowerBound(range[0])) 
+                            ? new ArrayList<>() : null; // Printed records, if the cache can keep them
+                        printed = printRecords(dataReader, layout, first, end, deltas, range[0], range[1], kept);
+                        if (kept != null) {
+                            cache.put(range[0], range[1], kept.toArray(new DataRecord[0]));
                         }
                     }
-                    // Input of -1 is used to close the program
-                    if (userVal == -1) {
-                        inputReader.close();
-                        stringReader.close();
-                        System.out.println("Program shutting down.");
-                        System.exit(0);
+                    if (printed == 0) {
+                        System.out.println("Search returned 0 records for criteria [Total Credits Issued: " 
+                        + queries.get(i) + "]. Please restart search.");
+                        shutdown = false;
+                        break;
                     }
-                } catch (Exception e) { // Catch is used incase user enters non integer value
-                    continue;
                 }
+                // Input of -1 is used to close the program
+                if (shutdown) {
+                    inputReader.close();
+                    stringReader.close();
+                    dataReader.close();
+                    System.out.println("Program shutting down.");
+                    System.exit(0);
+                }
+            } catch (Exception e) { // Catch is used incase user enters non integer value
+                continue;
             }
-        } catch (IOException e1) {
-            System.out.println("Error: Error finding file meta data during user search.");
-            System.exit(-1);
         }
     }
 
     /*
-     * static void printFirstFive -- read and print up 
+     * static long printFirstFive -- read and print up 
      * to five records from the beginning of the given 
      * binary file.
      * 
-     * @return: none
-     * @params: RandomAccessFile stream -- a reference to 
-     *  the file being read from.
-     * int[] stringLengths -- the lengths of each 
-     *  string field in the record. Used to create 
-     *  correctly sized byte containers for the 
-     *  data being read.
+     * @return: long holding the number of records printed
+     * @params: RecordReader reader -- a reference to 
+     *  the mapped file being read from.
+     * RecordLayout layout -- where the fields of each record are.
      * long numRecords -- the number of records in the file.
     */
-    static void printFirstFive (RandomAccessFile stream, int[] stringLengths, long numRecords) {
-        // Make sure that we are indexed to the beginning of the file and then read up to 5 records
-        try {
-            stream.seek(0);
-            int i = 0;
-            while (i < 5 && i < numRecords) {
-                DataRecord record = new DataRecord();
-                record.fetchObject(stream, stringLengths);
-                System.out.println(record);
-                i++;
-            }
-        } catch (IOException e) {
-            System.out.println("I/O ERROR: Couldn't get the first five objects.");
-            System.exit(-1);
-        }
+    static long printFirstFive (RecordReader reader, RecordLayout layout, long numRecords) {
+        // Start at the beginning of the file and then read up to 5 records
+        return printRange(reader, layout, 0, Math.min(5, numRecords));
     }
 
     /*
-     * static void printLastFive -- read and print up 
+     * static long printLastFive -- read and print up 
      * to five records from the end of the given 
      * binary file.
      * 
-     * @return: none
-     * @params: RandomAccessFile stream -- a reference to 
-     *  the file being read from.
-     * int[] stringLengths -- the lengths of each 
-     *  string field in the record. Used to create 
-     *  correctly sized byte containers for the 
-     *  data being read.
+     * @return: long holding the number of records printed
+     * @params: RecordReader reader -- a reference to 
+     *  the mapped file being read from.
+     * RecordLayout layout -- where the fields of each record are.
      * long numRecords -- the number of records in the file.
-     * int recordLength -- the length of each record in the file.
     */
-    static void printLastFive (RandomAccessFile stream, int[] stringLengths, long numRecords, int recordLength) {
+    static long printLastFive (RecordReader reader, RecordLayout layout, long numRecords) {
         // If there are less than 5 records than start at the beginning of the file otherwise index to the last 5
-        try {
-            if (numRecords < 5) {
-                stream.seek(0);
-            } else {
-                stream.seek(((int)numRecords - 5)* recordLength);
-            }
-        } catch (IOException e) {
-            System.out.println("I/O ERROR: Couldn't get the last five objects.");
-            System.exit(-1);
-        }
-
-        int i = 0;
-        while (i < 5 && i < numRecords) {
-            DataRecord record = new DataRecord();
-            record.fetchObject(stream, stringLengths);
-            System.out.println(record);
-            i++;
-        }
+        long startingIndex = numRecords < 5 ? 0 : numRecords - 5; // The index of the first of the last five records
+        return printRange(reader, layout, startingIndex, numRecords);
     }
 
     /*
-     * static void printMiddleFive -- read and print up 
+     * static long printMiddleFive -- read and print up 
      * to five records from the middle of the given 
      * binary file.
      * 
-     * @return: none
-     * @params: RandomAccessFile stream -- a reference to 
-     *  the file being read from.
-     * int[] stringLengths -- the lengths of each 
-     *  string field in the record. Used to create 
-     *  correctly sized byte containers for the 
-     *  data being read.
+     * @return: long holding the number of records printed
+     * @params: RecordReader reader -- a reference to 
+     *  the mapped file being read from.
+     * RecordLayout layout -- where the fields of each record are.
      * long numRecords -- the number of records in the file.
-     * int recordLength -- the length of each record in the file.
     */
-    static void printMiddleFive (RandomAccessFile stream, int[] stringLengths, long numRecords, int recordLength) {
-        int startingIndex; // The index of the first of five middle records
+    static long printMiddleFive (RecordReader reader, RecordLayout layout, long numRecords) {
+        long startingIndex; // The index of the first of five middle records
         int printNum; // The number of records to be read and printed (4 for even 5 for odd)
         if (numRecords % 2 == 0) {
-            startingIndex = (int) numRecords < 4 ? 0 : (int) numRecords/2 - 2;
+            startingIndex = numRecords < 4 ? 0 : numRecords/2 - 2;
             printNum = 4;
         } else {
-            startingIndex = (int) numRecords < 5 ? 0 : (int) Math.floor((int) numRecords/2) - 2;
+            startingIndex = numRecords < 5 ? 0 : numRecords/2 - 2;
             printNum = 5;
         }
 
-        try {
-            stream.seek(startingIndex * recordLength);
-        } catch (IOException e) {
-            System.out.println("I/O ERROR: Couldn't get the middle five objects.");
-            System.exit(-1);
+        return printRange(reader, layout, startingIndex, Math.min(startingIndex + printNum, numRecords));
+    }
+
+    /*
+     * static long printRange -- prints the records with 
+     * index first up to (not including) end. A mapped file is 
+     * read through a RecordView; with --pread or --pool the 
+     * range is read with one RecordScan instead of a read per 
+     * field.
+     * 
+     * @return: long holding the number of records printed
+     * @params: RecordReader reader -- the data file.
+     * RecordLayout layout -- where the fields of each record are.
+     * long first -- index of the first record to print
+     * long end -- index just past the last record to print
+    */
+    static long printRange(RecordReader reader, RecordLayout layout, long first, long end) {
+        if (reader.isMapped()) {
+            RecordView view = new RecordView(reader, layout); // Flyweight view over the mapping
+            for (long i = first; i < end; i++) {
+                view.moveTo(i);
+                System.out.println(view.materialize());
+            }
+        } else {
+            try (Stream<DataRecord> records = RecordScan.stream(reader, layout, first, end, null)) {
+                records.forEach(System.out::println);
+            }
         }
+        return Math.max(end - first, 0);
+    }
+
+    /*
+     * ScanKernel
+     * 
+     * Tests and sums the int fields of records a batch at a time, 
+     * for --where. RecordScan.nextBatch gathers the four int 
+     * fields of up to BATCH_RECORDS records from their fixed 
+     * stride into one int array per field, and the kernel then 
+     * marks the records whose fields all lie within the filter's 
+     * bounds and adds the fields of those records up.
+     * 
+     * ScalarScanKernel does this one record at a time. The 
+     * VectorScanKernel in VectorScanKernel.java does it with the 
+     * Vector API, as many records per instruction as the CPU's 
+     * widest int vector holds (8 with AVX2, 16 with AVX-512). The 
+     * Vector API is an incubator module, so that file is compiled 
+     * apart with
+     *   javac --add-modules jdk.incubator.vector Prog1B.java VectorScanKernel.java
+     * and used when the program is started with 
+     * --add-modules jdk.incubator.vector. Otherwise, or with 
+     * --scalar, the scalar kernel is used; both give the same 
+     * results. The interface is a member of Prog1B, the one 
+     * public class of this file, so VectorScanKernel.java can 
+     * implement it.
+     * 
+     * static ScanKernel load(scalarOnly)
+     * int filter(columns, count, lows, highs, selected, sums)
+     * String describe()
+    */
+    interface ScanKernel {
+        int BATCH_RECORDS = 1024; // Records gathered and tested at once
 
-        int i = 0;
-        while (i < printNum && i < numRecords) {
-            DataRecord record = new DataRecord();
-            record.fetchObject(stream, stringLengths);
-            System.out.println(record);
-            i++;
+        /*
+         * static ScanKernel load -- the vector kernel if it was 
+         * compiled and the Vector API is there, else the scalar one.
+         * 
+         * @return: ScanKernel to filter with
+         * @params: boolean scalarOnly -- whether --scalar was given
+        */
+        static ScanKernel load(boolean scalarOnly) {
+            if (!scalarOnly) {
+                try {
+                    return (ScanKernel) Class.forName("VectorScanKernel").getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    // Not compiled, or the program wasn't started with the incubator module
+                }
+            }
+            return new ScalarScanKernel();
         }
+
+        /*
+         * int filter -- marks the records of a batch whose int 
+         * fields are all within their bounds and adds each int 
+         * field of the marked records to sums.
+         * 
+         * @return: int holding the number of records marked
+         * @params: int[][] columns -- columns[f][i] holds int field 
+         *  RecordLayout.CREDITS_ISSUED + f of record i of the batch
+         * int count -- number of records in the batch
+         * int[] lows -- smallest value each int field may have
+         * int[] highs -- largest value each int field may have
+         * boolean[] selected -- receives whether record i is marked
+         * long[] sums -- the sum of each int field of the marked 
+         *  records is added to it
+        */
+        int filter(int[][] columns, int count, int[] lows, int[] highs, boolean[] selected, long[] sums);
+
+        /*
+         * String describe -- name of the kernel for --stats.
+        */
+        String describe();
     }
 }
 
@@ -424,7 +1133,9 @@ public class Prog1B {
  * void setCreditsRetired(val)
  * void setFirstYear(val)
  * void dumpObject(stream)
+ * void dumpObject(buffer, stringLengths)
  * void fetchObject(stream, stringLengths)
+ * void fetchObject(reader, layout, index)
  * String toString()
 */
 class DataRecord {
@@ -517,6 +1228,35 @@ class DataRecord {
         }
     }
 
+    /*
+     * public void dumpObject(ByteBuffer buffer, int[] stringLengths) -- 
+     * Writes the contents (fields) of the DataRecord to a 
+     * buffer in the same layout as dumpObject(stream), with 
+     * every string padded with spaces to its field length.
+     * 
+     * @return: none
+     * @params: ByteBuffer buffer -- buffer with room for 
+     *  at least one record.
+     * int[] stringLengths -- the lengths of each 
+     *  string field in the record.
+    */
+    public void dumpObject(ByteBuffer buffer, int[] stringLengths) {
+        String[] strings = {projectId, projectName, status, scope, type, 
+            methodology, region, country, state}; // String fields in file order
+        for (int i = 0; i < strings.length; i++) {
+            // Like writeBytes, only the low byte of each char is written
+            byte[] fieldBytes = strings[i].getBytes(StandardCharsets.ISO_8859_1);
+            buffer.put(fieldBytes);
+            for (int j = fieldBytes.length; j < stringLengths[i]; j++) {
+                buffer.put((byte) ' ');
+            }
+        }
+        buffer.putInt(creditsIssued);
+        buffer.putInt(creditsRetired);
+        buffer.putInt(creditsRemaining);
+        buffer.putInt(firstYear);
+    }
+
     /*
      * public void fetchObject(RandomAccessFile stream, int[] stringLengths) -- 
      * Reads the contents in a binary file to store data into a DataRecord 
@@ -581,6 +1321,47 @@ class DataRecord {
         }
     }
 
+    /*
+     * public void fetchObject(RecordReader reader, RecordLayout layout, long index) -- 
+     * Decodes the record with the given record number of a 
+     * memory-mapped binary file into this DataRecord object.
+     * 
+     * @return: none
+     * @params: 
+     * RecordReader reader -- a reference to 
+     *  the mapped file being read from.
+     * RecordLayout layout -- where each field of the 
+     *  record is stored in the file.
+     * long index -- record number of the record.
+    */
+    public void fetchObject(RecordReader reader, RecordLayout layout, long index) {
+        /*
+         * Same fields as the stream version, but each field 
+         * is copied from the position the layout gives for 
+         * it so no system calls are made. Dictionary coded 
+         * fields come back as the layout's interned Strings.
+        */
+        try {
+            projectId = layout.getString(reader, index, 0);
+            projectName = layout.getString(reader, index, 1);
+            status = layout.getString(reader, index, 2);
+            scope = layout.getString(reader, index, 3);
+            type = layout.getString(reader, index, 4);
+            methodology = layout.getString(reader, index, 5);
+            region = layout.getString(reader, index, 6);
+            country = layout.getString(reader, index, 7);
+            state = layout.getString(reader, index, 8);
+            creditsIssued = reader.getInt(layout.position(index, RecordLayout.CREDITS_ISSUED));
+            creditsRetired = reader.getInt(layout.position(index, RecordLayout.CREDITS_RETIRED));
+            creditsRemaining = reader.getInt(layout.position(index, RecordLayout.CREDITS_REMAINING));
+            firstYear = reader.getInt(layout.position(index, RecordLayout.FIRST_YEAR));
+        } catch (IndexOutOfBoundsException e) {
+            System.out.println("I/O ERROR: Couldn't read from the file;\n\t"
+                            + "is the record inside the file?");
+            System.exit(-1);
+        }
+    }
+
     /*
      * public String toString() -- overrites the
      * toString method found in classes to allow for 
@@ -592,4 +1373,5084 @@ class DataRecord {
     public String toString() {
         return "["+projectId+"]["+projectName+"]["+String.valueOf(creditsIssued)+"]";
     }
-}
\ No newline at end of file
+}
+
+/*
+ * RecordView
+ * 
+ * Flyweight view over one record slot of a mapped file. 
+ * Searches move a single view from slot to slot instead of 
+ * creating a DataRecord per probe. The int fields are read 
+ * at the fixed positions the RecordLayout gives for the slot, 
+ * and string fields are only decoded when one of their 
+ * getters is called.
+ * 
+ * static int fieldNumber(name)
+ * RecordView(reader, layout)
+ * void moveTo(index)
+ * void countLevel()
+ * void countRead(records, fields, bytes)
+ * RecordReader getReader()
+ * RecordLayout getLayout()
+ * long getIndex()
+ * long getMoves()
+ * long getLevels()
+ * long getReads()
+ * long getBytesRead()
+ * long getMaterialized()
+ * String getProjectId()
+ * String getProjectName()
+ * String getStatus()
+ * String getScope()
+ * String getType()
+ * String getMethodology()
+ * String getRegion()
+ * String getCountry()
+ * String getState()
+ * String getString(field)
+ * void getStringBytes(field, dst)
+ * int getInt(field)
+ * int getCreditsIssued()
+ * int getCreditsRetired()
+ * int getCreditsRemaining()
+ * int getFirstYear()
+ * DataRecord materialize()
+*/
+class RecordView {
+    // Names of the 9 string fields in the order their lengths are stored in the footer
+    static final String[] FIELD_NAMES = {"projectId", "projectName", "status", "scope", 
+        "type", "methodology", "region", "country", "state"};
+
+    private final RecordReader reader; // Mapped file the view reads from
+    private final RecordLayout layout; // Where the fields of each record are
+    private final int recordBytes; // Bytes of one record, all fields
+    private long index; // Record number the view currently points at
+    private long moves; // Number of times the view was moved, i.e. records probed
+    private long levels; // Search steps taken with the view (see countLevel)
+    private long reads; // Fields read through the view
+    private long bytesRead; // Bytes of those fields
+    private long materialized; // DataRecords created by materialize
+
+    /*
+     * RecordView(RecordReader reader, RecordLayout layout) -- 
+     * creates a view over the given mapped file.
+     * 
+     * @params: RecordReader reader -- the mapped file.
+     * RecordLayout layout -- result of RecordLayout.of(reader).
+    */
+    public RecordView(RecordReader reader, RecordLayout layout) {
+        this.reader = reader;
+        this.layout = layout;
+        this.recordBytes = layout.getRecordBytes();
+    }
+
+    /*
+     * static int fieldNumber(String name) -- footer index of 
+     * the string field with the given name.
+     * 
+     * @return: int holding the field number, or -1 if there 
+     *  is no string field with that name
+    */
+    static int fieldNumber(String name) {
+        return Arrays.asList(FIELD_NAMES).indexOf(name);
+    }
+
+    /*
+     * public void moveTo(long index) -- points the view at 
+     * the record with the given record number.
+    */
+    public void moveTo(long index) {
+        this.index = index;
+        moves++;
+    }
+
+    /*
+     * public void countLevel() -- called by searches once per 
+     * level (recursive call or loop step), so the levels of a 
+     * single key search are its recursion depth.
+    */
+    public void countLevel() {
+        levels++;
+    }
+
+    /*
+     * public void countRead(long records, long fields, long bytes) 
+     * -- counts records visited and fields read by code that 
+     * reads the file itself instead of through the view (see 
+     * AsyncStrategy and RecordScan.nextBatch), so Metrics sees 
+     * them like the view's own moves and reads.
+    */
+    public void countRead(long records, long fields, long bytes) {
+        moves += records;
+        reads += fields;
+        bytesRead += bytes;
+    }
+
+    public RecordReader getReader() { return reader; }
+    public RecordLayout getLayout() { return layout; }
+    public long getIndex() { return index; }
+    public long getMoves() { return moves; }
+    public long getLevels() { return levels; }
+    public long getReads() { return reads; }
+    public long getBytesRead() { return bytesRead; }
+    public long getMaterialized() { return materialized; }
+
+    /*
+     * Field getters for the record under the view. Strings 
+     * are decoded on every call since probes rarely need them.
+    */
+    public String getProjectId() { return getString(0); }
+    public String getProjectName() { return getString(1); }
+    public String getStatus() { return getString(2); }
+    public String getScope() { return getString(3); }
+    public String getType() { return getString(4); }
+    public String getMethodology() { return getString(5); }
+    public String getRegion() { return getString(6); }
+    public String getCountry() { return getString(7); }
+    public String getState() { return getString(8); }
+    public int getCreditsIssued() { return getInt(RecordLayout.CREDITS_ISSUED); }
+    public int getCreditsRetired() { return getInt(RecordLayout.CREDITS_RETIRED); }
+    public int getCreditsRemaining() { return getInt(RecordLayout.CREDITS_REMAINING); }
+    public int getFirstYear() { return getInt(RecordLayout.FIRST_YEAR); }
+
+    /*
+     * public int getInt(int field) -- reads the int field 
+     * with the given RecordLayout field number.
+    */
+    public int getInt(int field) {
+        reads++;
+        bytesRead += 4;
+        return reader.getInt(layout.position(index, field));
+    }
+
+    /*
+     * public String getString(int field) -- decodes the 
+     * string field with the given footer index.
+    */
+    public String getString(int field) {
+        reads++;
+        bytesRead += layout.getWidth(field);
+        return layout.getString(reader, index, field);
+    }
+
+    /*
+     * public void getStringBytes(int field, byte[] dst) -- 
+     * copies the padded bytes of the string field with the 
+     * given footer index into dst, without making a String.
+    */
+    public void getStringBytes(int field, byte[] dst) {
+        reads++;
+        bytesRead += layout.getWidth(field);
+        layout.getStringBytes(reader, index, field, dst);
+    }
+
+    /*
+     * public DataRecord materialize() -- creates a full 
+     * DataRecord for the record under the view.
+     * 
+     * @return: DataRecord holding every field of the record
+    */
+    public DataRecord materialize() {
+        reads += RecordLayout.NUM_FIELDS;
+        bytesRead += recordBytes;
+        materialized++;
+        DataRecord record = new DataRecord();
+        record.fetchObject(reader, layout, index);
+        return record;
+    }
+}
+
+/*
+ * RecordLayout
+ * 
+ * Describes where the fields of every record are stored in a 
+ * data file. Three layouts are understood:
+ * 
+ * Row files (written by Prog1A or --load) store the 13 fields 
+ * of a record next to each other and end with the 9 string 
+ * field lengths.
+ * 
+ * Columnar files (written by --columnar) store each field of 
+ * every record next to each other: one column per string 
+ * field, padded to the field length, then one 4 byte column 
+ * per int field. The footer holds the number of records, the 
+ * 13 column offsets, the same 9 field lengths and a magic 
+ * number. A search then reads only the creditsIssued column, 
+ * and a sum reads only the int columns it adds up.
+ * 
+ * Dictionary files (written by --dictionary) are row files in 
+ * which status, scope, type, methodology, region, country and 
+ * state are stored as a 1 byte code (2 bytes past 256 distinct 
+ * values) into a per-field dictionary instead of a padded 
+ * string. The records come first, then the dictionaries (for 
+ * each string field the number of values, 0 for a field that 
+ * isn't coded, then each value as a 2 byte length and its 
+ * bytes), then the number of records, the position of the 
+ * dictionaries, the 9 field lengths and a magic number. A 
+ * record shrinks to about a third, so more of them fit in a 
+ * page. The dictionaries are read once; their values are 
+ * padded to the field length and interned, so every record 
+ * shares the same String for a value.
+ * 
+ * In every layout field f of record i starts at byte 
+ * base[f] + i * stride[f]; only the bases and strides differ.
+ * Strings are read through getString or getStringBytes, which 
+ * decode dictionary codes.
+ * 
+ * static boolean isColumnar(reader)
+ * static boolean isDictionary(reader)
+ * static RecordLayout of(reader)
+ * static void writeColumnar(reader, outRef)
+ * static void writeDictionary(reader, outRef)
+ * int[] getFieldLengths()
+ * long getNumRecords()
+ * long getStride(field)
+ * int getWidth(field)
+ * int getRecordBytes()
+ * long position(index, field)
+ * String getString(reader, index, field)
+ * void getStringBytes(reader, index, field, dst)
+*/
+class RecordLayout {
+    // Field numbers of the int fields; 0 - 8 are the string fields in footer order
+    static final int CREDITS_ISSUED = 9;
+    static final int CREDITS_RETIRED = 10;
+    static final int CREDITS_REMAINING = 11;
+    static final int FIRST_YEAR = 12;
+    static final int NUM_FIELDS = 13;
+
+    static final int COLUMNAR_MAGIC = 0x434F4C53; // "COLS", ends a columnar file
+    static final int COLUMNAR_FOOTER_BYTES = 8 + NUM_FIELDS*8 + 9*4 + 4; // Count, offsets, lengths, magic
+    static final int DICTIONARY_MAGIC = 0x44494354; // "DICT", ends a dictionary file
+    static final int DICTIONARY_TAIL_BYTES = 8 + 8 + 9*4 + 4; // Count, dictionary position, lengths, magic
+    static final int FIRST_CODED_FIELD = 2; // Fields from status to state may be coded
+    static final int MAX_CODES = 1 << 16; // Most values a dictionary can hold
+
+    private final int[] fieldLengths; // Lengths of the 9 string fields
+    private final long numRecords; // Number of records in the file
+    private final long[] bases = new long[NUM_FIELDS]; // Position of each field of record 0
+    private final long[] strides = new long[NUM_FIELDS]; // Distance between a field of two neighbouring records
+    private final int[] widths = new int[NUM_FIELDS]; // Bytes each field takes up in a record
+    private final int[] codeBytes = new int[9]; // Bytes of each string field's code, 0 if not coded
+    private final String[][] dictionaries = new String[9][]; // Interned values of each coded field
+    private final byte[][][] dictionaryBytes = new byte[9][][]; // The same values as padded bytes
+
+    private RecordLayout(int[] fieldLengths, long numRecords) {
+        this.fieldLengths = fieldLengths;
+        this.numRecords = numRecords;
+    }
+
+    /*
+     * static boolean isColumnar -- whether a mapped file ends 
+     * with the columnar magic number. A row file ends with 
+     * the length of the state field, which is never that large.
+    */
+    static boolean isColumnar(RecordReader reader) {
+        return reader.length() >= COLUMNAR_FOOTER_BYTES 
+            && reader.getInt(reader.length() - 4) == COLUMNAR_MAGIC;
+    }
+
+    /*
+     * static boolean isDictionary -- whether a mapped file ends 
+     * with the dictionary magic number.
+    */
+    static boolean isDictionary(RecordReader reader) {
+        return reader.length() >= DICTIONARY_TAIL_BYTES 
+            && reader.getInt(reader.length() - 4) == DICTIONARY_MAGIC;
+    }
+
+    /*
+     * static RecordLayout of -- reads the footer of a mapped 
+     * file and works out where its fields are.
+     * 
+     * @return: RecordLayout of the file
+     * @params: RecordReader reader -- the mapped data file.
+    */
+    static RecordLayout of(RecordReader reader) {
+        int[] fieldLengths = Prog1B.getFieldLengths(reader); // Lengths of string fields in records
+        int recordLength = Prog1B.getRecordLength(fieldLengths); // Total length of a record
+
+        if (isColumnar(reader)) {
+            long footerStart = reader.length() - COLUMNAR_FOOTER_BYTES; // Position of the record count
+            RecordLayout layout = new RecordLayout(fieldLengths, readLong(reader, footerStart));
+            for (int f = 0; f < NUM_FIELDS; f++) {
+                layout.bases[f] = readLong(reader, footerStart + 8 + f*8);
+                layout.widths[f] = f < fieldLengths.length ? fieldLengths[f] : 4;
+                layout.strides[f] = layout.widths[f];
+            }
+            return layout;
+        }
+
+        if (isDictionary(reader)) {
+            long tailStart = reader.length() - DICTIONARY_TAIL_BYTES; // Position of the record count
+            RecordLayout layout = new RecordLayout(fieldLengths, readLong(reader, tailStart));
+            layout.readDictionaries(reader, readLong(reader, tailStart + 8));
+            int storedLength = 0; // Bytes of a record with its coded fields
+            for (int f = 0; f < NUM_FIELDS; f++) {
+                layout.bases[f] = storedLength;
+                layout.widths[f] = f < fieldLengths.length 
+                    ? (layout.codeBytes[f] > 0 ? layout.codeBytes[f] : fieldLengths[f]) : 4;
+                storedLength += layout.widths[f];
+            }
+            Arrays.fill(layout.strides, storedLength);
+            return layout;
+        }
+
+        RecordLayout layout = new RecordLayout(fieldLengths, 
+            Prog1B.getNumRecords(recordLength, reader.length()));
+        long offset = 0; // Offset of the next field inside a record
+        for (int f = 0; f < NUM_FIELDS; f++) {
+            layout.bases[f] = offset;
+            layout.strides[f] = recordLength;
+            layout.widths[f] = f < fieldLengths.length ? fieldLengths[f] : 4;
+            offset += layout.widths[f];
+        }
+        return layout;
+    }
+
+    /*
+     * private void readDictionaries -- reads the dictionaries 
+     * of a dictionary file, padding and interning each value.
+     * 
+     * @return: none
+     * @params: RecordReader reader -- the mapped data file.
+     * long position -- where the dictionaries start
+    */
+    private void readDictionaries(RecordReader reader, long position) {
+        for (int f = 0; f < 9; f++) {
+            int count = reader.getInt(position); // Values in the field's dictionary
+            position += 4;
+            if (count == 0) {
+                continue;
+            }
+            codeBytes[f] = count <= 256 ? 1 : 2;
+            dictionaries[f] = new String[count];
+            dictionaryBytes[f] = new byte[count][];
+            for (int code = 0; code < count; code++) {
+                int length = reader.getUnsigned(position, 2); // Bytes of the value, in 2 bytes
+                byte[] padded = new byte[Math.max(length, fieldLengths[f])]; // Value as a plain file stores it
+                Arrays.fill(padded, (byte) ' ');
+                position += 2;
+                byte[] value = new byte[length]; // The value's bytes
+                position = reader.getBytes(position, value);
+                System.arraycopy(value, 0, padded, 0, length);
+                dictionaryBytes[f][code] = padded;
+                dictionaries[f][code] = new String(padded).intern();
+            }
+        }
+    }
+
+    /*
+     * static long readLong -- reads a big-endian long the way 
+     * DataOutputStream.writeLong wrote it.
+    */
+    static long readLong(RecordReader reader, long position) {
+        return ((long) reader.getInt(position) << 32) | (reader.getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    public int[] getFieldLengths() { return fieldLengths; }
+    public long getNumRecords() { return numRecords; }
+    public long getStride(int field) { return strides[field]; }
+    public int getWidth(int field) { return widths[field]; }
+
+    /*
+     * public int getRecordBytes() -- bytes one record takes 
+     * up in the file, over all of its fields.
+    */
+    public int getRecordBytes() {
+        int recordBytes = 0;
+        for (int width : widths) {
+            recordBytes += width;
+        }
+        return recordBytes;
+    }
+
+    /*
+     * public long position(long index, int field) -- byte 
+     * position of the given field of the given record.
+    */
+    public long position(long index, int field) {
+        return bases[field] + index * strides[field];
+    }
+
+    /*
+     * private int getCode -- reads the dictionary code of a 
+     * coded field at the code's own width.
+    */
+    private int getCode(RecordReader reader, long index, int field) {
+        return reader.getUnsigned(position(index, field), codeBytes[field]);
+    }
+
+    /*
+     * public String getString -- decodes a string field of a 
+     * record, padded to the field length like Prog1A wrote it.
+     * 
+     * @return: String holding the field; the dictionary's 
+     *  interned String if the field is coded
+     * @params: RecordReader reader -- the mapped data file.
+     * long index -- record number of the record.
+     * int field -- footer index of the string field
+    */
+    public String getString(RecordReader reader, long index, int field) {
+        if (codeBytes[field] > 0) {
+            return dictionaries[field][getCode(reader, index, field)];
+        }
+        byte[] fieldBytes = new byte[fieldLengths[field]]; // Container for the raw field
+        reader.getBytes(position(index, field), fieldBytes);
+        return new String(fieldBytes);
+    }
+
+    /*
+     * public void getStringBytes -- copies the padded bytes of 
+     * a string field into dst, as a row file would store them.
+     * 
+     * @return: none
+     * @params: RecordReader reader -- the mapped data file.
+     * long index -- record number of the record.
+     * int field -- footer index of the string field
+     * byte[] dst -- receives the field length's worth of bytes
+    */
+    public void getStringBytes(RecordReader reader, long index, int field, byte[] dst) {
+        if (codeBytes[field] > 0) {
+            System.arraycopy(dictionaryBytes[field][getCode(reader, index, field)], 0, dst, 0, dst.length);
+        } else {
+            reader.getBytes(position(index, field), dst);
+        }
+    }
+
+    /*
+     * static void writeColumnar -- copies every record of a 
+     * mapped data file into a new file in the columnar layout. 
+     * Each column is written from a RecordScan over that field.
+     * 
+     * @return: none
+     * @params: RecordReader reader -- the mapped data file.
+     * File outRef -- the columnar file to write.
+    */
+    static void writeColumnar(RecordReader reader, File outRef) {
+        RecordLayout layout = of(reader); // Where the fields are in the input
+        long[] columnOffsets = new long[NUM_FIELDS]; // Where each column starts in the output
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BulkLoader.WRITE_BUFFER_BYTES); // Output buffer
+
+        try (FileChannel out = FileChannel.open(outRef.toPath(), StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0; // Bytes of the output written so far
+            for (int f = 0; f < NUM_FIELDS; f++) {
+                columnOffsets[f] = written;
+                byte[] fieldBytes = new byte[f < layout.fieldLengths.length ? layout.fieldLengths[f] : 0];
+                RecordScan scan = new RecordScan(reader, layout, 0, layout.numRecords, 1 << f, null); // The column
+                RecordView view = scan.getView(); // View the scan moves
+                while (scan.advance()) {
+                    if (buffer.remaining() < Math.max(fieldBytes.length, 4)) {
+                        BulkLoader.flush(out, buffer);
+                    }
+                    if (f < layout.fieldLengths.length) {
+                        view.getStringBytes(f, fieldBytes);
+                        buffer.put(fieldBytes);
+                    } else {
+                        buffer.putInt(view.getInt(f));
+                    }
+                }
+                scan.close();
+                written += layout.numRecords * (f < layout.fieldLengths.length ? fieldBytes.length : 4);
+            }
+
+            if (buffer.remaining() < COLUMNAR_FOOTER_BYTES) {
+                BulkLoader.flush(out, buffer);
+            }
+            buffer.putLong(layout.numRecords);
+            for (long offset : columnOffsets) {
+                buffer.putLong(offset);
+            }
+            for (int length : layout.fieldLengths) {
+                buffer.putInt(length);
+            }
+            buffer.putInt(COLUMNAR_MAGIC);
+            BulkLoader.flush(out, buffer);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't write the columnar file " + outRef + ".");
+            System.exit(-1);
+        }
+    }
+
+    /*
+     * static void writeDictionary -- copies every record of a 
+     * mapped data file into a new file in the dictionary 
+     * layout. A first pass collects the distinct values of 
+     * every field that may be coded; a field with more than 
+     * MAX_CODES of them is stored as plain strings. Both passes 
+     * read the input with a RecordScan.
+     * 
+     * @return: none
+     * @params: RecordReader reader -- the mapped data file.
+     * File outRef -- the dictionary file to write.
+    */
+    static void writeDictionary(RecordReader reader, File outRef) {
+        RecordLayout layout = of(reader); // Where the fields are in the input
+        byte[][] fieldBytes = new byte[9][]; // Padded bytes of each string field
+        for (int f = 0; f < 9; f++) {
+            fieldBytes[f] = new byte[layout.fieldLengths[f]];
+        }
+
+        // Number the distinct values of each field, in sorted order
+        ArrayList<TreeMap<String, Integer>> codes = new ArrayList<>(); // Value to code, null if not coded
+        for (int f = 0; f < 9; f++) {
+            codes.add(f < FIRST_CODED_FIELD ? null : new TreeMap<>());
+        }
+        int codedFields = (1 << 9) - (1 << FIRST_CODED_FIELD); // Field mask of the fields that may be coded
+        RecordScan scan = new RecordScan(reader, layout, 0, layout.numRecords, codedFields, null); // First pass
+        RecordView view = scan.getView(); // View the scan moves
+        while (scan.advance()) {
+            for (int f = FIRST_CODED_FIELD; f < 9; f++) {
+                if (codes.get(f) != null) {
+                    view.getStringBytes(f, fieldBytes[f]);
+                    codes.get(f).put(new String(fieldBytes[f], StandardCharsets.ISO_8859_1).stripTrailing(), 0);
+                    if (codes.get(f).size() > MAX_CODES) {
+                        codes.set(f, null);
+                    }
+                }
+            }
+        }
+        scan.close();
+        int[] widths = new int[9]; // Bytes of each string field in the new file
+        for (int f = 0; f < 9; f++) {
+            TreeMap<String, Integer> fieldCodes = codes.get(f); // Codes of the field, if it is coded
+            if (fieldCodes == null) {
+                widths[f] = layout.fieldLengths[f];
+                continue;
+            }
+            widths[f] = fieldCodes.size() <= 256 ? 1 : 2;
+            int code = 0; // Code of the next value
+            for (Map.Entry<String, Integer> entry : fieldCodes.entrySet()) {
+                entry.setValue(code++);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BulkLoader.WRITE_BUFFER_BYTES); // Output buffer
+        try (FileChannel out = FileChannel.open(outRef.toPath(), StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            scan = new RecordScan(reader, layout, 0, layout.numRecords, RecordScan.ALL_FIELDS, null);
+            view = scan.getView();
+            while (scan.advance()) {
+                if (buffer.remaining() < Prog1B.getRecordLength(layout.fieldLengths)) {
+                    BulkLoader.flush(out, buffer);
+                }
+                for (int f = 0; f < 9; f++) {
+                    view.getStringBytes(f, fieldBytes[f]);
+                    TreeMap<String, Integer> fieldCodes = codes.get(f); // Codes of the field, if it is coded
+                    if (fieldCodes == null) {
+                        buffer.put(fieldBytes[f]);
+                        continue;
+                    }
+                    int code = fieldCodes.get(new String(fieldBytes[f], StandardCharsets.ISO_8859_1).stripTrailing());
+                    if (widths[f] == 1) {
+                        buffer.put((byte) code);
+                    } else {
+                        buffer.putShort((short) code);
+                    }
+                }
+                for (int f = CREDITS_ISSUED; f < NUM_FIELDS; f++) {
+                    buffer.putInt(view.getInt(f));
+                }
+            }
+            scan.close();
+
+            long dictionaryStart = layout.numRecords * Prog1B.getRecordLength(widths); // Where they go
+            for (int f = 0; f < 9; f++) {
+                TreeMap<String, Integer> fieldCodes = codes.get(f); // Codes of the field, if it is coded
+                if (buffer.remaining() < 4) {
+                    BulkLoader.flush(out, buffer);
+                }
+                buffer.putInt(fieldCodes == null ? 0 : fieldCodes.size());
+                if (fieldCodes == null) {
+                    continue;
+                }
+                for (String value : fieldCodes.keySet()) {
+                    byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1); // Value as stored
+                    if (buffer.remaining() < 2 + valueBytes.length) {
+                        BulkLoader.flush(out, buffer);
+                    }
+                    buffer.putShort((short) valueBytes.length);
+                    buffer.put(valueBytes);
+                }
+            }
+
+            if (buffer.remaining() < DICTIONARY_TAIL_BYTES) {
+                BulkLoader.flush(out, buffer);
+            }
+            buffer.putLong(layout.numRecords);
+            buffer.putLong(dictionaryStart);
+            for (int length : layout.fieldLengths) {
+                buffer.putInt(length);
+            }
+            buffer.putInt(DICTIONARY_MAGIC);
+            BulkLoader.flush(out, buffer);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't write the dictionary file " + outRef + ".");
+            System.exit(-1);
+        }
+    }
+}
+
+/*
+ * BatchSearch
+ * 
+ * Non-interactive search run by --batch for scripts with many 
+ * keys. The keys file holds values and min..max ranges 
+ * separated by white space or commas. Three stages run at once 
+ * and hand chunks of CHUNK_QUERIES queries to each other 
+ * through small blocking queues:
+ *  reader  parses the input bytes straight into ints
+ *  lookup  finds the bounds of a whole chunk with one 
+ *          Prog1B.lookupBounds call and formats its lines, 
+ *          about WRITE_BUFFER_BYTES at a time
+ *  writer  (the calling thread) writes the lines through one 
+ *          large buffered writer, flushed only at the end
+ * 
+ * The output starts with a header line. Each matching record 
+ * is written as a line of the query, "hit" and its 13 fields. 
+ * A query with no match gets a single "miss" line and a token 
+ * that isn't a value or range gets an "invalid" line; neither 
+ * stops the batch. Matches take the delta files into account 
+ * the same way interactive searches do (see Matches).
+ * 
+ * static void run(dataReader, fences, searchMode, keysName, deltas)
+ * static void appendRecord(lines, query, probe)
+ * static void appendRecord(lines, query, record)
+*/
+class BatchSearch {
+    static final int CHUNK_QUERIES = 4096; // Queries handed between stages at once
+    static final int QUEUE_CHUNKS = 4; // Chunks a stage may run ahead of the next one
+    static final int READ_BUFFER_BYTES = 1 << 16; // Bytes of keys read at once
+    static final int WRITE_BUFFER_BYTES = 1 << 20; // Bytes of output buffered before a write
+    static final String HEADER = "query\tresult\t" + String.join("\t", RecordView.FIELD_NAMES) 
+        + "\tcreditsIssued\tcreditsRetired\tcreditsRemaining\tfirstYear\n"; // First output line
+
+    /*
+     * Chunk -- queries parsed from the input. Query i covers 
+     * mins[i]..maxes[i]; a token that couldn't be parsed keeps 
+     * its text in invalid[i], and its mins[i] and maxes[i] are 
+     * left over from an earlier query. An empty chunk ends the 
+     * stream.
+    */
+    static class Chunk {
+        final int[] mins = new int[CHUNK_QUERIES]; // Smallest value of each query
+        final int[] maxes = new int[CHUNK_QUERIES]; // Largest value of each query
+        final String[] invalid = new String[CHUNK_QUERIES]; // Text of tokens that aren't queries
+        int size; // Number of queries in the chunk
+    }
+
+    /*
+     * Matches -- walks the matches of one query: the records 
+     * of the file from first up to end that no delta replaced 
+     * or deleted, merged in credits issued order with the live 
+     * delta records in the query's range. On equal credits the 
+     * records of the file come first, as in Prog1B.printRecords.
+    */
+    static final class Matches {
+        private final RecordView probe; // View over the file's records
+        private final DeltaStore deltas; // Changes made since the file was written
+        private long next; // Next record of the file to look at
+        private final long end; // Just past the last record of the file in the range
+        private int d; // Next live delta record
+        private final int dEnd; // Just past the last live delta record in the range
+        private DataRecord delta; // Current match if it is a delta record, else null
+
+        Matches(RecordView probe, long first, long end, DeltaStore deltas, int min, int max) {
+            this.probe = probe;
+            this.deltas = deltas;
+            this.next = first;
+            this.end = end;
+            this.d = deltas.lowerBound(min);
+            this.dEnd = deltas.lowerBound((long) max + 1);
+        }
+
+        /*
+         * boolean next -- moves to the next match, leaving the 
+         * probe on it if it is a record of the file.
+         * 
+         * @return: boolean false once there are no more matches
+        */
+        boolean next() {
+            while (next < end) {
+                probe.moveTo(next);
+                if (deltas.isEmpty() || !deltas.shadows(probe.getProjectId().stripTrailing())) {
+                    break;
+                }
+                next++;
+            }
+            if (d < dEnd && (next >= end || deltas.getLive(d).getCreditsIssued() < probe.getCreditsIssued())) {
+                delta = deltas.getLive(d++);
+                return true;
+            }
+            delta = null;
+            return next++ < end;
+        }
+
+        /*
+         * DataRecord getDelta -- the current match if it is a 
+         * delta record, or null if it is the record under the probe.
+        */
+        DataRecord getDelta() { return delta; }
+
+        /*
+         * void append -- appends the output line of the current match.
+        */
+        void append(StringBuilder lines, String query) {
+            if (delta != null) {
+                appendRecord(lines, query, delta);
+            } else {
+                appendRecord(lines, query, probe);
+            }
+        }
+
+        /*
+         * DataRecord materialize -- the current match as a DataRecord.
+        */
+        DataRecord materialize() {
+            return delta != null ? delta : probe.materialize();
+        }
+    }
+
+    /*
+     * static void run -- searches for every query in the keys 
+     * file and writes the results to std.out.
+     * 
+     * @return: none
+     * @params: RecordReader dataReader -- the mapped data file.
+     * FenceIndex fences -- sparse index over the file, or null
+     * String searchMode -- name of the search strategy to use
+     * String keysName -- the keys file, or - for std.in
+     * DeltaStore deltas -- changes made since the file was written
+    */
+    static void run(RecordReader dataReader, FenceIndex fences, String searchMode, String keysName, 
+            DeltaStore deltas) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        RecordView probe = new RecordView(dataReader, layout); // Used only by the lookup stage
+        SearchStrategy strategy = SearchStrategy.forName(searchMode, probe, numRecords); // How to search
+        if (strategy == null) {
+            System.out.println("Error: unknown search strategy " + searchMode + ".");
+            System.exit(-1);
+        }
+
+        InputStream keys = null; // Source of the queries
+        try {
+            keys = keysName.equals("-") ? System.in : new FileInputStream(keysName);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't open the keys file " + keysName + ".");
+            System.exit(-1);
+        }
+
+        BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<>(QUEUE_CHUNKS); // Reader to lookup
+        BlockingQueue<String> formatted = new ArrayBlockingQueue<>(QUEUE_CHUNKS); // Lookup to writer
+        InputStream input = keys; // Final copy for the reader stage
+        Thread reader = new Thread(() -> readQueries(input, parsed), "batch-reader");
+        Thread lookup = new Thread(() -> lookupQueries(probe, numRecords, fences, strategy, deltas, 
+            parsed, formatted), "batch-lookup");
+        // The writer would wait forever on a stage that died, so end the program instead
+        Thread.UncaughtExceptionHandler stageFailed = (stage, e) -> {
+            System.out.println("Error: " + stage.getName() + " stopped with " + e + ".");
+            System.exit(-1);
+        };
+        reader.setUncaughtExceptionHandler(stageFailed);
+        lookup.setUncaughtExceptionHandler(stageFailed);
+        reader.start();
+        lookup.start();
+
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 
+                WRITE_BUFFER_BYTES); // Std.out without a flush per line
+            out.write(HEADER);
+            for (String lines = formatted.take(); !lines.isEmpty(); lines = formatted.take()) {
+                out.write(lines);
+            }
+            out.flush();
+            reader.join();
+            lookup.join();
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't write the batch results.");
+            System.exit(-1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * static void readQueries -- the reader stage. Tokens are 
+     * parsed from the raw bytes without creating a String, 
+     * except for tokens that turn out to be invalid.
+     * 
+     * @return: none
+     * @params: InputStream keys -- the keys being read.
+     * BlockingQueue<Chunk> parsed -- where full chunks go
+    */
+    static void readQueries(InputStream keys, BlockingQueue<Chunk> parsed) {
+        byte[] buffer = new byte[READ_BUFFER_BYTES]; // Bytes read from the keys
+        byte[] token = new byte[64]; // Current token, kept in case it is invalid
+        int tokenLength = 0; // Bytes of the token seen so far
+        Chunk chunk = new Chunk(); // Chunk being filled
+
+        try {
+            for (int count = keys.read(buffer); ; count = keys.read(buffer)) {
+                // The end of the input is read as one more separator to end the last token
+                for (int i = 0; i < Math.max(count, 1); i++) {
+                    byte b = count > 0 ? buffer[i] : (byte) ' '; // Current byte
+                    if (b != ' ' && b != ',' && b != '\n' && b != '\r' && b != '\t') {
+                        if (tokenLength == token.length) {
+                            token = Arrays.copyOf(token, tokenLength * 2);
+                        }
+                        token[tokenLength++] = b;
+                    } else if (tokenLength > 0) {
+                        addQuery(chunk, token, tokenLength);
+                        tokenLength = 0;
+                        if (chunk.size == CHUNK_QUERIES) {
+                            parsed.put(chunk);
+                            chunk = new Chunk();
+                        }
+                    }
+                }
+                if (count < 0) {
+                    break;
+                }
+            }
+            if (chunk.size > 0) {
+                parsed.put(chunk);
+            }
+            parsed.put(new Chunk());
+            keys.close();
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't read the keys.");
+            System.exit(-1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * static void addQuery -- parses one token, a value or a 
+     * range written min..max, into the next slot of a chunk.
+     * 
+     * @return: none
+     * @params: Chunk chunk -- the chunk being filled
+     * byte[] token -- bytes of the token
+     * int length -- number of bytes in the token
+    */
+    static void addQuery(Chunk chunk, byte[] token, int length) {
+        int slot = chunk.size++; // Slot the query goes into
+        int rangeSplit = -1; // Position of the range separator, if any
+        for (int i = 0; i + 1 < length; i++) {
+            if (token[i] == '.' && token[i + 1] == '.') {
+                rangeSplit = i;
+                break;
+            }
+        }
+
+        long min = rangeSplit < 0 ? parseInt(token, 0, length) : parseInt(token, 0, rangeSplit); // Smallest value
+        long max = rangeSplit < 0 ? min : parseInt(token, rangeSplit + 2, length); // Largest value
+        if (min == Long.MIN_VALUE || max == Long.MIN_VALUE) {
+            chunk.invalid[slot] = new String(token, 0, length, StandardCharsets.ISO_8859_1);
+            return;
+        }
+        chunk.invalid[slot] = null;
+        chunk.mins[slot] = (int) min;
+        chunk.maxes[slot] = (int) max;
+    }
+
+    /*
+     * static long parseInt -- parses a decimal int with an 
+     * optional sign from part of a byte array.
+     * 
+     * @return: long holding the value, or Long.MIN_VALUE if 
+     *  the bytes aren't an int
+    */
+    static long parseInt(byte[] bytes, int start, int end) {
+        boolean negative = start < end && bytes[start] == '-'; // Whether there is a minus sign
+        int i = negative || (start < end && bytes[start] == '+') ? start + 1 : start; // First digit
+        if (i == end || end - i > 10) {
+            return Long.MIN_VALUE;
+        }
+        long val = 0; // Value of the digits so far
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0'; // Value of the current digit
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            val = val * 10 + digit;
+        }
+        val = negative ? -val : val;
+        return val < Integer.MIN_VALUE || val > Integer.MAX_VALUE ? Long.MIN_VALUE : val;
+    }
+
+    /*
+     * static void appendRecord -- appends the output line for 
+     * the record under the view that matched a query.
+     * 
+     * @return: none
+     * @params: StringBuilder lines -- output being built
+     * String query -- the query the record matched
+     * RecordView probe -- view over the matching record
+    */
+    static void appendRecord(StringBuilder lines, String query, RecordView probe) {
+        lines.append(query).append("\thit");
+        for (int f = 0; f < RecordView.FIELD_NAMES.length; f++) {
+            lines.append('\t').append(probe.getString(f).stripTrailing());
+        }
+        for (int f = RecordLayout.CREDITS_ISSUED; f < RecordLayout.NUM_FIELDS; f++) {
+            lines.append('\t').append(probe.getInt(f));
+        }
+        lines.append('\n');
+    }
+
+    /*
+     * static void appendRecord -- appends the same line for 
+     * a record that was already decoded, such as one kept by 
+     * the ResultCache.
+     * 
+     * @return: none
+     * @params: StringBuilder lines -- output being built
+     * String query -- the query the record matched
+     * DataRecord record -- the matching record
+    */
+    static void appendRecord(StringBuilder lines, String query, DataRecord record) {
+        String[] strings = {record.getProjectId(), record.getProjectName(), record.getStatus(), 
+            record.getScope(), record.getType(), record.getMethodology(), record.getRegion(), 
+            record.getCountry(), record.getState()}; // String fields in footer order
+        lines.append(query).append("\thit");
+        for (String value : strings) {
+            lines.append('\t').append(value.stripTrailing());
+        }
+        lines.append('\t').append(record.getCreditsIssued()).append('\t').append(record.getCreditsRetired())
+            .append('\t').append(record.getCreditsRemaining()).append('\t').append(record.getFirstYear()).append('\n');
+    }
+
+    /*
+     * static void lookupQueries -- the lookup stage. Finds the 
+     * lower bound of every min and every max + 1 of the valid 
+     * queries of a chunk in one batch, then formats the lines 
+     * for the chunk.
+     * 
+     * @return: none
+     * @params: RecordView probe -- view over the data file.
+     * long numRecords -- the number of records in the file.
+     * FenceIndex fences -- sparse index over the file, or null
+     * SearchStrategy strategy -- how to search the file
+     * DeltaStore deltas -- changes made since the file was written
+     * BlockingQueue<Chunk> parsed -- chunks from the reader
+     * BlockingQueue<String> formatted -- lines for the writer
+    */
+    static void lookupQueries(RecordView probe, long numRecords, FenceIndex fences, SearchStrategy strategy, 
+    DeltaStore deltas, BlockingQueue<Chunk> parsed, BlockingQueue<String> formatted) {
+        try {
+            for (Chunk chunk = parsed.take(); chunk.size > 0; chunk = parsed.take()) {
+                long[] keys = new long[chunk.size * 2]; // Both bounds of each valid query
+                int numSearched = 0; // Keys filled in
+                for (int i = 0; i < chunk.size; i++) {
+                    if (chunk.invalid[i] == null) {
+                        keys[numSearched++] = chunk.mins[i];
+                        keys[numSearched++] = (long) chunk.maxes[i] + 1;
+                    }
+                }
+                long[] bounds = Prog1B.lookupBounds(probe, numRecords, fences, strategy, 
+                    Arrays.copyOf(keys, numSearched)); // Lower bounds
+
+                StringBuilder lines = new StringBuilder(); // Output for the chunk
+                for (int i = 0, k = 0; i < chunk.size; i++) {
+                    if (chunk.invalid[i] != null) {
+                        lines.append(chunk.invalid[i]).append("\tinvalid\n");
+                        continue;
+                    }
+                    String query = chunk.mins[i] == chunk.maxes[i] ? String.valueOf(chunk.mins[i]) 
+                        : chunk.mins[i] + ".." + chunk.maxes[i]; // The query as the user wrote it
+                    Matches matches = new Matches(probe, bounds[k], bounds[k + 1], deltas, 
+                        chunk.mins[i], chunk.maxes[i]); // Records of the file and deltas in the range
+                    k += 2;
+                    if (!matches.next()) {
+                        lines.append(query).append("\tmiss\n");
+                        continue;
+                    }
+                    do {
+                        matches.append(lines, query);
+                        // A wide range can match most of the file, so hand lines over as they pile up
+                        if (lines.length() >= WRITE_BUFFER_BYTES) {
+                            formatted.put(lines.toString());
+                            lines.setLength(0);
+                        }
+                    } while (matches.next());
+                }
+                formatted.put(lines.toString());
+            }
+            formatted.put("");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/*
+ * LookupServer
+ * 
+ * Small HTTP server run by --serve so that many clients can 
+ * search the same data file at once. It only listens on the 
+ * loopback address. A request like
+ *     GET /search?q=44202&q=0..1000
+ * is answered with the lines --batch would write for the same 
+ * queries (see BatchSearch), streamed as they are formatted.
+ * 
+ * Nothing a request touches is shared and mutable: the reader 
+ * has no file position, the fence index and search strategy 
+ * are read-only once built, and every request moves its own 
+ * RecordView. Requests therefore run in parallel without any 
+ * lock. Each one gets its own thread: a virtual thread when 
+ * the JVM has them (Java 21 and later), otherwise a thread 
+ * from a cached pool, which grows with the number of requests 
+ * waiting on the disk. The only shared state that changes is 
+ * the optional ResultCache, which has its own lock. The delta 
+ * files are read once when the server starts.
+ * 
+ * static void run(dataReader, fences, searchMode, port, cache, deltas)
+*/
+class LookupServer {
+    static final int BACKLOG = 128; // Connections the OS queues before accept
+
+    /*
+     * static void run -- starts the server. It keeps running 
+     * on its own threads after run returns.
+     * 
+     * @return: none
+     * @params: RecordReader dataReader -- the data file.
+     * FenceIndex fences -- sparse index over the file, or null
+     * String searchMode -- name of the search strategy to use
+     * int port -- local port to listen on
+     * ResultCache cache -- results of earlier queries, or null
+     * DeltaStore deltas -- changes made since the file was written
+    */
+    static void run(RecordReader dataReader, FenceIndex fences, String searchMode, int port, ResultCache cache, 
+            DeltaStore deltas) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        SearchStrategy strategy = SearchStrategy.forName(searchMode, 
+            new RecordView(dataReader, layout), numRecords); // Shared by every request
+        if (strategy == null) {
+            System.out.println("Error: unknown search strategy " + searchMode + ".");
+            System.exit(-1);
+        }
+
+        try {
+            HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+            server.createContext("/search", exchange -> {
+                try {
+                    search(exchange, new RecordView(dataReader, layout), numRecords, fences, strategy, cache, deltas);
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.setExecutor(requestExecutor());
+            server.start();
+            System.out.println("Serving searches on http://" + server.getAddress().getHostString() 
+                + ":" + server.getAddress().getPort() + "/search?q=<value or min..max>");
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't listen on port " + port + ".");
+            System.exit(-1);
+        }
+    }
+
+    /*
+     * static ExecutorService requestExecutor -- a thread per 
+     * task executor, with virtual threads where the JVM has 
+     * them. Looked up by name so the program still builds on 
+     * Java 17.
+    */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /*
+     * static void search -- answers one request.
+     * 
+     * @return: none
+     * @params: HttpExchange exchange -- the request and response
+     * RecordView probe -- view used only by this request
+     * long numRecords -- the number of records in the file.
+     * FenceIndex fences -- sparse index over the file, or null
+     * SearchStrategy strategy -- how to search the file
+     * ResultCache cache -- results of earlier queries, or null
+     * DeltaStore deltas -- changes made since the file was written
+    */
+    static void search(HttpExchange exchange, RecordView probe, long numRecords, FenceIndex fences, 
+    SearchStrategy strategy, ResultCache cache, DeltaStore deltas) throws IOException {
+        ArrayList<String> queries = new ArrayList<>(); // Every q parameter, decoded
+        String rawQuery = exchange.getRequestURI().getRawQuery(); // Parameters of the request
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                if (param.startsWith("q=")) {
+                    queries.add(URLDecoder.decode(param.substring(2), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (!exchange.getRequestMethod().equals("GET") || queries.isEmpty()) {
+            byte[] usage = "usage: GET /search?q=<value or min..max>[&q=...]\n".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, usage.length);
+            exchange.getResponseBody().write(usage);
+            return;
+        }
+
+        // Answer what the cache can, then search for the lower bound of every other min and max + 1 in one batch
+        int[][] ranges = new int[queries.size()][]; // Values covered by each query, null if invalid
+        DataRecord[][] cached = new DataRecord[queries.size()][]; // Cached result of each query, or null
+        long[] keys = new long[queries.size() * 2]; // Both bounds of each query, searched or not
+        for (int i = 0; i < queries.size(); i++) {
+            try {
+                ranges[i] = Prog1B.parseQuery(queries.get(i));
+                cached[i] = cache == null ? null : cache.get(ranges[i][0], ranges[i][1]);
+            } catch (NumberFormatException e) {
+                ranges[i] = null;
+            }
+        }
+        int numSearched = 0; // Queries the file is searched for
+        for (int i = 0; i < queries.size(); i++) {
+            if (ranges[i] != null && cached[i] == null) {
+                keys[numSearched++] = ranges[i][0];
+                keys[numSearched++] = (long) ranges[i][1] + 1;
+            }
+        }
+        long[] bounds = Prog1B.lookupBounds(probe, numRecords, fences, strategy, 
+            Arrays.copyOf(keys, numSearched)); // Lower bounds
+
+        exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), 
+            StandardCharsets.UTF_8), BatchSearch.WRITE_BUFFER_BYTES); // Body, streamed in chunks
+        out.write(BatchSearch.HEADER);
+        StringBuilder line = new StringBuilder(); // Line being formatted
+        for (int i = 0, k = 0; i < queries.size(); i++) {
+            line.setLength(0);
+            if (ranges[i] == null) {
+                out.append(line.append(queries.get(i)).append("\tinvalid\n"));
+                continue;
+            }
+            if (cached[i] == null) {
+                long first = bounds[k++]; // First matching record of the file
+                long end = bounds[k++]; // Just past its last one
+                BatchSearch.Matches matches = new BatchSearch.Matches(probe, first, end, deltas, 
+                    ranges[i][0], ranges[i][1]); // Records of the file and deltas in the range
+                if (cache != null && cache.admits(end - first + deltas.lowerBound((long) ranges[i][1] + 1) 
+                        - deltas.lowerBound(ranges[i][0]))) {
+                    ArrayList<DataRecord> kept = new ArrayList<>(); // Every match, for the cache
+                    while (matches.next()) {
+                        kept.add(matches.materialize());
+                    }
+                    cached[i] = kept.toArray(new DataRecord[0]);
+                    cache.put(ranges[i][0], ranges[i][1], cached[i]);
+                } else {
+                    if (!matches.next()) {
+                        out.append(line.append(queries.get(i)).append("\tmiss\n"));
+                        continue;
+                    }
+                    do {
+                        line.setLength(0);
+                        matches.append(line, queries.get(i));
+                        out.append(line);
+                    } while (matches.next());
+                    continue;
+                }
+            }
+            if (cached[i].length == 0) {
+                out.append(line.append(queries.get(i)).append("\tmiss\n"));
+            }
+            for (DataRecord record : cached[i]) {
+                line.setLength(0);
+                BatchSearch.appendRecord(line, queries.get(i), record);
+                out.append(line);
+            }
+        }
+        out.flush();
+    }
+}
+
+/*
+ * Metrics
+ * 
+ * Counters and latency histograms for the hot paths, shared 
+ * by every thread. Each operation (a search, the printing of 
+ * records or the scan of a range of records) is wrapped in a 
+ * Span that notes the time and the counters of the RecordView 
+ * it uses when it begins, and records the differences when it 
+ * ends:
+ *  items    keys searched, records printed or records scanned
+ *  probes   records the view was moved to
+ *  levels   search steps; for a single key, the recursion depth
+ *  reads    fields read, and the bytes they hold
+ *  records  DataRecords materialized
+ * 
+ * Latencies go into a log-linear histogram like HdrHistogram's: 
+ * each power of two of nanoseconds is split into SUB_BUCKETS 
+ * buckets, so a percentile is off by at most 1/SUB_BUCKETS. 
+ * Recording is a few adds, and nothing is recorded unless 
+ * --stats was given or a JFR recording has the operation event 
+ * (OperationEvent) on. --stats prints the summary when the 
+ * program ends.
+ * 
+ * Slow operations with few probes and bytes point to a cold 
+ * page cache; slow operations with many of them point to the 
+ * access pattern.
+ * 
+ * static void enable()
+ * static void report(line)
+ * static Span begin(operation, view)
+ * static void end(span, items)
+ * static long percentile(operation, fraction)
+ * static void printSummary()
+*/
+class Metrics {
+    static final int SEARCH = 0; // lookupBounds calls
+    static final int PRINT = 1; // Records printed by printRecords and printRecordGroups
+    static final int SCAN = 2; // Ranges scanned by AggregateTask and by --where (Prog1B.filterRecords)
+    static final String[] OPERATIONS = {"search", "print", "scan"}; // Names of the operations
+    static final int SUB_BUCKET_BITS = 3; // Bits of a latency kept below its top bit
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+    static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS; // Buckets per histogram
+
+    static volatile boolean enabled; // Whether --stats was given
+    private static final EventType OPERATION_EVENT = EventType.getEventType(OperationEvent.class); // On if JFR records it
+    private static final LongAdder[][] counters = new LongAdder[OPERATIONS.length][7]; // See COUNTER_NAMES
+    private static final String[] COUNTER_NAMES = {"count", "items", "probes", "levels", "reads", "bytes", "records"};
+    private static final LongAccumulator[] maxNanos = new LongAccumulator[OPERATIONS.length]; // Slowest of each
+    private static final AtomicLongArray[] histograms = new AtomicLongArray[OPERATIONS.length]; // Latencies
+    private static final ArrayList<Supplier<String>> reports = new ArrayList<>(); // Extra summary lines
+
+    static {
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            for (int c = 0; c < COUNTER_NAMES.length; c++) {
+                counters[op][c] = new LongAdder();
+            }
+            maxNanos[op] = new LongAccumulator(Math::max, 0);
+            histograms[op] = new AtomicLongArray(NUM_BUCKETS);
+        }
+    }
+
+    /*
+     * Span -- one operation being timed.
+    */
+    static final class Span {
+        final int operation; // Which operation it is
+        final RecordView view; // View the operation reads through, or null
+        final OperationEvent event; // JFR event for the operation
+        final long startNanos; // When it began
+        final long moves, levels, reads, bytes, records; // Counters of the view when it began
+
+        Span(int operation, RecordView view, OperationEvent event) {
+            this.operation = operation;
+            this.view = view;
+            this.event = event;
+            this.moves = view == null ? 0 : view.getMoves();
+            this.levels = view == null ? 0 : view.getLevels();
+            this.reads = view == null ? 0 : view.getReads();
+            this.bytes = view == null ? 0 : view.getBytesRead();
+            this.records = view == null ? 0 : view.getMaterialized();
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    /*
+     * static void enable -- turns on recording and prints the 
+     * summary when the program ends.
+    */
+    static void enable() {
+        if (!enabled) {
+            enabled = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::printSummary, "stats"));
+        }
+    }
+
+    /*
+     * static void report -- adds a line, made when the summary 
+     * is printed, to the end of the summary.
+    */
+    static synchronized void report(Supplier<String> line) {
+        reports.add(line);
+    }
+
+    /*
+     * static Span begin -- starts timing an operation.
+     * 
+     * @return: Span to pass to end, or null if nothing records it
+     * @params: int operation -- SEARCH, PRINT or SCAN
+     * RecordView view -- view the operation reads through
+    */
+    static Span begin(int operation, RecordView view) {
+        if (!enabled && !OPERATION_EVENT.isEnabled()) {
+            return null;
+        }
+        OperationEvent event = new OperationEvent(); // Only committed if JFR has it on
+        event.begin();
+        return new Span(operation, view, event);
+    }
+
+    /*
+     * static void end -- finishes timing an operation and 
+     * records it.
+     * 
+     * @return: none
+     * @params: Span span -- the result of begin, or null
+     * long items -- keys searched or records printed or scanned
+    */
+    static void end(Span span, long items) {
+        if (span == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - span.startNanos; // Latency of the operation
+        RecordView view = span.view;
+        long[] deltas = {1, items, 
+            view == null ? 0 : view.getMoves() - span.moves, 
+            view == null ? 0 : view.getLevels() - span.levels, 
+            view == null ? 0 : view.getReads() - span.reads, 
+            view == null ? 0 : view.getBytesRead() - span.bytes, 
+            view == null ? 0 : view.getMaterialized() - span.records}; // Same order as COUNTER_NAMES
+
+        if (enabled) {
+            for (int c = 0; c < deltas.length; c++) {
+                counters[span.operation][c].add(deltas[c]);
+            }
+            maxNanos[span.operation].accumulate(nanos);
+            histograms[span.operation].incrementAndGet(bucket(nanos));
+        }
+
+        OperationEvent event = span.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = OPERATIONS[span.operation];
+            event.items = items;
+            event.probes = deltas[2];
+            event.levels = deltas[3];
+            event.reads = deltas[4];
+            event.bytes = deltas[5];
+            event.records = deltas[6];
+            event.commit();
+        }
+    }
+
+    /*
+     * static int bucket -- histogram bucket of a latency: the 
+     * position of its top bit and the SUB_BUCKET_BITS below it.
+    */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS; // Bits dropped
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /*
+     * static long bucketTop -- largest latency in a bucket.
+    */
+    static long bucketTop(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1; // Bits dropped
+        long base = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift; // Smallest latency in it
+        return base + (1L << shift) - 1;
+    }
+
+    /*
+     * static long percentile -- the latency that the given 
+     * fraction of the operations didn't exceed.
+     * 
+     * @return: long holding the latency in nanoseconds, or 0 
+     *  if the operation never ran
+     * @params: int operation -- SEARCH, PRINT or SCAN
+     * double fraction -- such as 0.99 for the 99th percentile
+    */
+    static long percentile(int operation, double fraction) {
+        AtomicLongArray histogram = histograms[operation]; // Latencies of the operation
+        long total = 0; // Operations recorded
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            total += histogram.get(b);
+        }
+        long rank = (long) Math.ceil(fraction * total); // Operations at or below the percentile
+        long seen = 0; // Operations in the buckets so far
+        for (int b = 0; b < NUM_BUCKETS && total > 0; b++) {
+            seen += histogram.get(b);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(bucketTop(b), maxNanos[operation].get());
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * static void printSummary -- prints the latency 
+     * percentiles in microseconds and the counters per 
+     * operation of every operation that ran.
+    */
+    static void printSummary() {
+        System.out.println(String.format("%-8s %9s %10s %9s %9s %9s %9s %9s %10s %9s %9s %10s %10s", 
+            "stats", "count", "items", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", 
+            "probes/op", "levels/op", "reads/op", "bytes/op", "records/op"));
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            long count = counters[op][0].sum(); // Operations recorded
+            if (count == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-8s %9d %10d %9.1f %9.1f %9.1f %9.1f %9.1f %10.2f %9.2f %9.2f %10.1f %10.2f", 
+                OPERATIONS[op], count, counters[op][1].sum(), 
+                percentile(op, 0.5) / 1e3, percentile(op, 0.9) / 1e3, percentile(op, 0.99) / 1e3, 
+                percentile(op, 0.999) / 1e3, maxNanos[op].get() / 1e3, 
+                (double) counters[op][2].sum() / count, (double) counters[op][3].sum() / count, 
+                (double) counters[op][4].sum() / count, (double) counters[op][5].sum() / count, 
+                (double) counters[op][6].sum() / count));
+        }
+        synchronized (Metrics.class) {
+            for (Supplier<String> line : reports) {
+                System.out.println(line.get());
+            }
+        }
+    }
+}
+
+/*
+ * OperationEvent
+ * 
+ * JFR event committed by Metrics.end for every search, print 
+ * or scan while a recording has it on, for example with 
+ * -XX:StartFlightRecording:filename=run.jfr. Its duration is 
+ * the operation's latency.
+*/
+@Name("Prog1B.Operation")
+@Label("Record Operation")
+@Category("Prog1B")
+@Description("A search, print or scan of the data file")
+class OperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Items")
+    @Description("Keys searched, records printed or records scanned")
+    long items;
+
+    @Label("Probes")
+    @Description("Records the view was moved to")
+    long probes;
+
+    @Label("Levels")
+    @Description("Search steps; the recursion depth of a single key search")
+    long levels;
+
+    @Label("Reads")
+    long reads;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytes;
+
+    @Label("Records Materialized")
+    long records;
+}
+
+/*
+ * SearchStrategy
+ * 
+ * A way of finding the lower bound of a key (the first record 
+ * whose credits issued value is not less than it) between two 
+ * record numbers, with the same result as ternarySearch. 
+ * Picked with --search:
+ *  ternary        Prog1B.ternarySearch, two probes per level
+ *  binary         one probe per level
+ *  interpolation  guesses the position from the key values
+ *  learned        piecewise-linear model of key -> position
+ *  async          ternary search with concurrent, speculative 
+ *                 probe reads
+ * 
+ * long lowerBound(probe, lowerBound, upperBound, key)
+ * void lowerBounds(probe, numRecords, sortedKeys, bounds)
+ * void close()
+ * static SearchStrategy forName(name, probe, numRecords)
+*/
+interface SearchStrategy {
+    String[] NAMES = {"ternary", "binary", "interpolation", "learned", "async"}; // Strategies forName knows
+
+    /*
+     * long lowerBound -- finds the first record between the 
+     * bounds whose credits issued value is not less than the key.
+     * 
+     * @return: long holding its index, or upperBound + 1
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file.
+     * long lowerBound -- the index of the lower bound in the search
+     * long upperBound -- the index of the upper bound for the search
+     * long key -- the value we are searching for
+    */
+    long lowerBound(RecordView probe, long lowerBound, long upperBound, long key);
+
+    /*
+     * void lowerBounds -- finds the lower bound of every key 
+     * of a sorted key set over the whole file.
+    */
+    default void lowerBounds(RecordView probe, long numRecords, long[] sortedKeys, long[] bounds) {
+        for (int i = 0; i < sortedKeys.length; i++) {
+            bounds[i] = lowerBound(probe, 0, numRecords - 1, sortedKeys[i]);
+        }
+    }
+
+    /*
+     * void close -- releases whatever the strategy keeps 
+     * open. Most keep nothing.
+    */
+    default void close() {
+    }
+
+    /*
+     * static SearchStrategy forName -- creates the strategy 
+     * with the given name, building its model if it has one.
+     * 
+     * @return: SearchStrategy, or null for an unknown name
+    */
+    static SearchStrategy forName(String name, RecordView probe, long numRecords) {
+        switch (name) {
+            case "ternary": return new TernaryStrategy();
+            case "binary": return new BinaryStrategy();
+            case "interpolation": return new InterpolationStrategy();
+            case "learned": return LearnedStrategy.build(probe, numRecords);
+            case "async": return AsyncStrategy.open(probe);
+            default: return null;
+        }
+    }
+}
+
+/*
+ * TernaryStrategy
+ * 
+ * The original ternary search. Batches share probes through 
+ * Prog1B.batchSearch.
+*/
+class TernaryStrategy implements SearchStrategy {
+    public long lowerBound(RecordView probe, long lowerBound, long upperBound, long key) {
+        return Prog1B.ternarySearch(probe, lowerBound, upperBound, key);
+    }
+
+    public void lowerBounds(RecordView probe, long numRecords, long[] sortedKeys, long[] bounds) {
+        Prog1B.batchSearch(probe, 0, numRecords - 1, sortedKeys, 0, sortedKeys.length, bounds);
+    }
+}
+
+/*
+ * BinaryStrategy
+ * 
+ * Binary search: one probe per level instead of ternary 
+ * search's two, for log2(N) probes per lookup in all.
+*/
+class BinaryStrategy implements SearchStrategy {
+    public long lowerBound(RecordView probe, long lowerBound, long upperBound, long key) {
+        long low = lowerBound; // First record that may be the answer
+        long high = upperBound + 1; // Last record that may be the answer
+        while (low < high) {
+            probe.countLevel();
+            long middle = low + (high - low) / 2; // Record probed this level
+            probe.moveTo(middle);
+            if (probe.getCreditsIssued() < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
+
+/*
+ * InterpolationStrategy
+ * 
+ * Interpolation search: guesses where the key lies from the 
+ * credits issued values at the two ends of the range instead 
+ * of always cutting it in the middle. Credits issued are very 
+ * skewed, so a guess that fails to halve the range is followed 
+ * by a plain bisection step, which keeps the worst case at 
+ * about twice that of binary search.
+*/
+class InterpolationStrategy implements SearchStrategy {
+    public long lowerBound(RecordView probe, long lowerBound, long upperBound, long key) {
+        if (lowerBound > upperBound) {
+            return lowerBound;
+        }
+        probe.moveTo(lowerBound);
+        long lowVal = probe.getCreditsIssued(); // Credits issued at the low end
+        if (key <= lowVal) {
+            return lowerBound;
+        }
+        probe.moveTo(upperBound);
+        long highVal = probe.getCreditsIssued(); // Credits issued at the high end
+        if (key > highVal) {
+            return upperBound + 1;
+        }
+
+        // The answer is past low and no further than high: lowVal < key <= highVal
+        long low = lowerBound; // Last record known to be below the key
+        long high = upperBound; // First record known to be at or above the key
+        boolean bisect = false; // Whether the last guess failed to halve the range
+        while (high - low > 1) {
+            probe.countLevel();
+            long guess; // Record probed this step
+            if (bisect) {
+                guess = low + (high - low) / 2;
+            } else {
+                guess = low + (long) ((double) (key - lowVal) / (highVal - lowVal) * (high - low));
+                guess = Math.max(low + 1, Math.min(high - 1, guess));
+            }
+            long width = high - low; // Size of the range before this step
+            probe.moveTo(guess);
+            long guessVal = probe.getCreditsIssued(); // Credits issued at the guess
+            if (guessVal < key) {
+                low = guess;
+                lowVal = guessVal;
+            } else {
+                high = guess;
+                highVal = guessVal;
+            }
+            bisect = !bisect && (high - low) * 2 > width;
+        }
+        return high;
+    }
+}
+
+/*
+ * LearnedStrategy
+ * 
+ * A small learned index. When it is built, the first record of 
+ * every distinct credits issued value is read in one pass and 
+ * covered with straight line segments. Each segment maps a key 
+ * to a predicted record number that is off by at most 
+ * MAX_ERROR records (a greedy "shrinking cone" fit). The 
+ * segments are kept in memory.
+ * 
+ * A lookup picks the segment in memory, predicts the position 
+ * and then gallops outwards from the prediction to find the 
+ * exact lower bound. For keys in the file that costs a few 
+ * probes close together; keys that are not in the file may 
+ * need a few more.
+*/
+class LearnedStrategy implements SearchStrategy {
+    static final long MAX_ERROR = 4; // Largest distance of a prediction from the truth
+
+    private final long[] firstKeys; // First key covered by each segment
+    private final long[] firstPositions; // Record number of the first key of each segment
+    private final double[] slopes; // Records per unit of key in each segment
+
+    private LearnedStrategy(long[] firstKeys, long[] firstPositions, double[] slopes) {
+        this.firstKeys = firstKeys;
+        this.firstPositions = firstPositions;
+        this.slopes = slopes;
+    }
+
+    /*
+     * static LearnedStrategy build -- fits the segments to the 
+     * first record of every distinct key in the file.
+     * 
+     * @return: LearnedStrategy for the file
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file.
+     * long numRecords -- the number of records in the file.
+    */
+    static LearnedStrategy build(RecordView probe, long numRecords) {
+        ArrayList<long[]> segments = new ArrayList<>(); // {first key, first position}
+        ArrayList<Double> segmentSlopes = new ArrayList<>(); // Slope of each segment
+        long startKey = 0; // First key of the segment being fitted
+        long startPosition = 0; // Position of that key
+        double minSlope = 0; // Smallest slope that still fits every point
+        double maxSlope = Double.POSITIVE_INFINITY; // Largest slope that still fits every point
+        long previousKey = Long.MIN_VALUE; // Key of the previous record
+
+        for (long i = 0; i < numRecords; i++) {
+            probe.moveTo(i);
+            long key = probe.getCreditsIssued(); // Key of this record
+            if (key == previousKey) {
+                continue;
+            }
+            previousKey = key;
+
+            if (segments.isEmpty()) {
+                segments.add(new long[] {key, i});
+                startKey = key;
+                startPosition = i;
+                continue;
+            }
+            double low = (double) (i - MAX_ERROR - startPosition) / (key - startKey); // Slope putting it MAX_ERROR early
+            double high = (double) (i + MAX_ERROR - startPosition) / (key - startKey); // Slope putting it MAX_ERROR late
+            if (low > maxSlope || high < minSlope) {
+                // The point can't join the segment, so it starts the next one
+                segmentSlopes.add(segmentSlope(minSlope, maxSlope));
+                segments.add(new long[] {key, i});
+                startKey = key;
+                startPosition = i;
+                minSlope = 0;
+                maxSlope = Double.POSITIVE_INFINITY;
+            } else {
+                minSlope = Math.max(minSlope, low);
+                maxSlope = Math.min(maxSlope, high);
+            }
+        }
+        segmentSlopes.add(segmentSlope(minSlope, maxSlope));
+
+        long[] firstKeys = new long[segments.size()];
+        long[] firstPositions = new long[segments.size()];
+        double[] slopes = new double[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            firstKeys[i] = segments.get(i)[0];
+            firstPositions[i] = segments.get(i)[1];
+            slopes[i] = segmentSlopes.get(i);
+        }
+        return new LearnedStrategy(firstKeys, firstPositions, slopes);
+    }
+
+    /*
+     * static double segmentSlope -- a slope inside the range 
+     * that fits every point of a segment.
+    */
+    static double segmentSlope(double minSlope, double maxSlope) {
+        return maxSlope == Double.POSITIVE_INFINITY ? minSlope : (minSlope + maxSlope) / 2;
+    }
+
+    public long lowerBound(RecordView probe, long lowerBound, long upperBound, long key) {
+        if (lowerBound > upperBound) {
+            return lowerBound;
+        }
+
+        // Find the last segment starting at or before the key
+        int low = 0; // First segment that may be it
+        int high = firstKeys.length; // One past the last segment that may be it
+        while (low < high) {
+            int middle = (low + high) >>> 1; // Middle segment of what is left
+            if (firstKeys[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        long guess; // Predicted record number of the answer
+        if (low == 0) {
+            guess = 0;
+        } else {
+            int segment = low - 1; // Segment covering the key
+            guess = firstPositions[segment] + Math.round(slopes[segment] * (key - firstKeys[segment]));
+            if (low < firstKeys.length) {
+                guess = Math.min(guess, firstPositions[low]);
+            }
+        }
+        guess = Math.max(lowerBound, Math.min(upperBound, guess));
+
+        // Gallop away from the guess until the answer is bracketed, then bisect
+        long step = 1; // Distance of the next probe from the guess
+        long below; // Last record known to be below the key
+        long above; // First record known to be at or above the key
+        probe.moveTo(guess);
+        if (probe.getCreditsIssued() >= key) {
+            above = guess;
+            below = guess - step;
+            while (below >= lowerBound) {
+                probe.moveTo(below);
+                if (probe.getCreditsIssued() < key) {
+                    break;
+                }
+                above = below;
+                step *= 2;
+                below = guess - step;
+            }
+            below = Math.max(below, lowerBound - 1);
+        } else {
+            below = guess;
+            above = guess + step;
+            while (above <= upperBound) {
+                probe.moveTo(above);
+                if (probe.getCreditsIssued() >= key) {
+                    break;
+                }
+                below = above;
+                step *= 2;
+                above = guess + step;
+            }
+            above = Math.min(above, upperBound + 1);
+        }
+
+        while (above - below > 1) {
+            probe.countLevel();
+            long middle = below + (above - below) / 2; // Record probed this step
+            probe.moveTo(middle);
+            if (probe.getCreditsIssued() < key) {
+                below = middle;
+            } else {
+                above = middle;
+            }
+        }
+        return above;
+    }
+}
+
+/*
+ * AsyncStrategy
+ * 
+ * Ternary search over an AsynchronousFileChannel, for files on 
+ * disks or network volumes where every read waits a long time. 
+ * Prog1B.ternarySearch reads the lower divider, then the upper 
+ * one, and only then knows where the next level is, so each 
+ * lookup is a chain of serial waits.
+ * 
+ * Here both dividers of a level are read at once, and while 
+ * they are in flight the dividers of all three thirds the 
+ * search could go on to are read as well. Once the level's 
+ * values are in, the search goes on in one third, whose reads 
+ * were started a level earlier, and the reads of the other 
+ * two are cancelled, or ignored if they are already done. 
+ * That is about one wait per level instead of two, for up to 
+ * three times the reads. The result is the same as 
+ * ternarySearch's.
+ * 
+ * On a file in the page cache each read is handed to the 
+ * channel's threads and back, so there it is slower than 
+ * searching the mapping.
+ * 
+ * static AsyncStrategy open(probe)
+ * long lowerBound(probe, lowerBound, upperBound, key)
+ * void close()
+*/
+class AsyncStrategy implements SearchStrategy {
+    private final AsynchronousFileChannel channel; // Channel every probe is read through
+    private final RecordLayout layout; // Where the credits issued value of each record is
+    private final LongAdder issued = new LongAdder(); // Probe reads started
+    private final LongAdder used = new LongAdder(); // Probe reads whose value the search needed
+    private final LongAdder cancelled = new LongAdder(); // Reads cancelled before they finished
+
+    /*
+     * Probe -- the read of the credits issued value of one 
+     * record, started when the probe is created.
+    */
+    final class Probe {
+        final long index; // Record read
+        final long position; // Position of its credits issued value
+        final ByteBuffer value = ByteBuffer.allocate(4); // Receives the value
+        final Future<Integer> read; // The read in flight
+        boolean done; // Whether the value has been waited for
+
+        Probe(long index) {
+            this.index = index;
+            this.position = layout.position(index, RecordLayout.CREDITS_ISSUED);
+            this.read = channel.read(value, position);
+            issued.increment();
+        }
+
+        /*
+         * int get -- waits for the value, finishing a short 
+         * read if there is one, and counts the probe for the view.
+        */
+        int get(RecordView probe) {
+            probe.moveTo(index);
+            probe.countRead(0, 1, 4);
+            if (!done) {
+                try {
+                    read.get();
+                    while (value.hasRemaining()) {
+                        if (channel.read(value, position + value.position()).get() < 0) {
+                            throw new IndexOutOfBoundsException("read past the end of the file");
+                        }
+                    }
+                } catch (ExecutionException | InterruptedException e) {
+                    System.out.println("I/O ERROR: Couldn't read from the file.");
+                    System.exit(-1);
+                }
+                done = true;
+                used.increment();
+            }
+            return value.getInt(0);
+        }
+
+        /*
+         * void cancel -- gives up on the value. The read is not 
+         * interrupted, since that would close the shared channel.
+        */
+        void cancel() {
+            if (!done && read.cancel(false)) {
+                cancelled.increment();
+            }
+        }
+    }
+
+    /*
+     * Level -- one level of the search: the range left and 
+     * the probes of its two dividers, or none if it is empty.
+    */
+    final class Level {
+        final long lowerBound, upperBound; // Range left to search
+        final Probe lower, upper; // Probes of the dividers splitting it in three
+
+        Level(long lowerBound, long upperBound) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            if (lowerBound > upperBound) {
+                lower = upper = null;
+                return;
+            }
+            long lowerDivider = lowerBound + (upperBound - lowerBound) / 3; // Lower value splitting "array" in three
+            long upperDivider = upperBound - (upperBound - lowerBound) / 3; // Upper value splitting "array" in three
+            lower = new Probe(lowerDivider);
+            upper = upperDivider == lowerDivider ? lower : new Probe(upperDivider);
+        }
+
+        boolean isEmpty() { return lower == null; }
+
+        /*
+         * Level[] split -- starts the levels of the three 
+         * thirds, lowest first.
+        */
+        Level[] split() {
+            return new Level[] {new Level(lowerBound, lower.index - 1), 
+                new Level(lower.index + 1, upper.index - 1), new Level(upper.index + 1, upperBound)};
+        }
+
+        void cancel() {
+            if (!isEmpty()) {
+                lower.cancel();
+                upper.cancel();
+            }
+        }
+    }
+
+    private AsyncStrategy(AsynchronousFileChannel channel, RecordLayout layout) {
+        this.channel = channel;
+        this.layout = layout;
+        Metrics.report(() -> String.format("async    %d probe reads, %d used, %d cancelled (%.1f%% wasted)", 
+            issued.sum(), used.sum(), cancelled.sum(), 
+            100.0 * (issued.sum() - used.sum()) / Math.max(1, issued.sum())));
+    }
+
+    /*
+     * static AsyncStrategy open -- opens an asynchronous 
+     * channel on the file the probe reads.
+     * 
+     * @return: AsyncStrategy for the file
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file.
+    */
+    static AsyncStrategy open(RecordView probe) {
+        try {
+            return new AsyncStrategy(AsynchronousFileChannel.open(probe.getReader().getFile().toPath(), 
+                StandardOpenOption.READ), probe.getLayout());
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't open the file for asynchronous reads.");
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    public long lowerBound(RecordView probe, long lowerBound, long upperBound, long key) {
+        Level level = new Level(lowerBound, upperBound); // Level being searched
+        while (true) {
+            probe.countLevel();
+            // Base case
+            if (level.isEmpty()) {
+                return level.lowerBound;
+            }
+
+            Level[] thirds = level.split(); // Read before it is known which one is needed
+            int next; // Third the key is in
+            if (key <= level.lower.get(probe)) {
+                next = 0;
+                level.upper.cancel();
+            } else if (key <= level.upper.get(probe)) {
+                next = 1;
+            } else {
+                next = 2;
+            }
+            for (int i = 0; i < thirds.length; i++) {
+                if (i != next) {
+                    thirds[i].cancel();
+                }
+            }
+            level = thirds[next];
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't close the file.");
+        }
+    }
+}
+
+/*
+ * Benchmark
+ * 
+ * Small timing harness run by --bench. For every data file 
+ * given it times record decoding, reading the footer, point 
+ * searches that hit or miss with every SearchStrategy, a 
+ * search for a heavily duplicated key, searches through 
+ * positional reads and the buffer pool, the fence index and 
+ * batch lookups, and a full sequential scan. Every benchmark 
+ * is warmed up before it is measured.
+ * 
+ * For each one it prints the operations per second, the bytes 
+ * allocated per operation by the benchmark thread, and the 
+ * number of records probed per operation (RecordView moves), 
+ * so search strategies can be compared and regressions caught.
+ * Files too short to hold a footer are skipped.
+ * 
+ * static void run(fileNames)
+*/
+class Benchmark {
+    static final long WARMUP_NANOS = 500_000_000L; // Time spent warming up each benchmark
+    static final long MEASURE_NANOS = 1_000_000_000L; // Time spent measuring each benchmark
+    static final int NUM_KEYS = 1024; // Keys (or records) each benchmark cycles through
+    static long sink; // Consumes results so the JIT can't drop the work
+
+    /*
+     * static void run -- runs every benchmark on every file.
+     * 
+     * @return: none
+     * @params: String[] fileNames -- the data files to time
+    */
+    static void run(String[] fileNames) {
+        System.out.println(String.format("%-24s %-20s %14s %12s %10s", 
+            "file", "benchmark", "ops/s", "B/op", "probes/op"));
+
+        for (String fileName : fileNames) {
+            File fileRef = new File(fileName); // Data file being timed
+            RecordReader reader;
+            try {
+                reader = new RecordReader(fileRef);
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't open " + fileName + ".");
+                continue;
+            }
+            if (reader.length() < 9*4) {
+                System.out.println(String.format("%-24s skipped, no footer", fileRef.getName()));
+                reader.close();
+                continue;
+            }
+
+            RecordLayout layout = RecordLayout.of(reader); // Where the fields of each record are
+            RecordView view = new RecordView(reader, layout); // View used by every benchmark
+            long numRecords = layout.getNumRecords(); // Number of records in the file
+            if (numRecords == 0) {
+                System.out.println(String.format("%-24s skipped, no records", fileRef.getName()));
+                reader.close();
+                continue;
+            }
+
+            // Pick the records and keys the benchmarks cycle through
+            Random random = new Random(460); // Fixed seed so runs are comparable
+            long[] records = new long[NUM_KEYS]; // Random record numbers
+            long[] hitKeys = new long[NUM_KEYS]; // Keys that are in the file
+            long[] missKeys = new long[NUM_KEYS]; // Keys that are not in the file
+            for (int i = 0; i < NUM_KEYS; i++) {
+                records[i] = (long) (random.nextDouble() * numRecords);
+                view.moveTo(records[i]);
+                hitKeys[i] = view.getCreditsIssued();
+                missKeys[i] = hitKeys[i] + 1;
+                long bound = Prog1B.ternarySearch(view, 0, numRecords - 1, missKeys[i]); // Where it would be
+                if (bound < numRecords) {
+                    view.moveTo(bound);
+                    if (view.getCreditsIssued() == missKeys[i]) {
+                        missKeys[i] = -1; // Credits are never negative
+                    }
+                }
+            }
+            long dupKey = mostCommonKey(view, numRecords); // Key shared by the most records
+            FenceIndex fences = FenceIndex.open(fileRef, reader); // Sparse index over the file
+            String name = fileRef.getName(); // Name printed for the file
+
+            int[] next = new int[1]; // Position in the record and key arrays
+            measure(name, "fetchObject", view, () -> {
+                DataRecord record = new DataRecord();
+                record.fetchObject(reader, layout, records[next[0]++ & (NUM_KEYS - 1)]);
+                sink += record.getCreditsIssued();
+                return 1;
+            });
+            measure(name, "fieldLengths", view, () -> {
+                sink += Prog1B.getRecordLength(Prog1B.getFieldLengths(reader));
+                return 1;
+            });
+            for (String strategyName : SearchStrategy.NAMES) {
+                SearchStrategy strategy = SearchStrategy.forName(strategyName, view, numRecords);
+                measure(name, strategyName + "-hit", view, () -> {
+                    sink += strategy.lowerBound(view, 0, numRecords - 1, hitKeys[next[0]++ & (NUM_KEYS - 1)]);
+                    return 1;
+                });
+                measure(name, strategyName + "-miss", view, () -> {
+                    sink += strategy.lowerBound(view, 0, numRecords - 1, missKeys[next[0]++ & (NUM_KEYS - 1)]);
+                    return 1;
+                });
+                strategy.close();
+            }
+            measure(name, "search-dup", view, () -> {
+                long first = Prog1B.ternarySearch(view, 0, numRecords - 1, dupKey); // First match
+                sink += Prog1B.ternarySearch(view, first, numRecords - 1, dupKey + 1) - first;
+                return 1;
+            });
+            try {
+                RecordReader preader = new PositionalRecordReader(fileRef); // Same file without the mapping
+                RecordView pview = new RecordView(preader, layout); // View over positional reads
+                measure(name, "pread-hit", pview, () -> {
+                    sink += Prog1B.ternarySearch(pview, 0, numRecords - 1, hitKeys[next[0]++ & (NUM_KEYS - 1)]);
+                    return 1;
+                });
+                preader.close();
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't open " + fileName + " for positional reads.");
+            }
+            try {
+                BufferPool pool = new BufferPool(fileRef, 64L << 20); // Same file through 64 MB of pages
+                RecordView poolView = new RecordView(pool, layout); // View over the pool
+                measure(name, "pool-hit", poolView, () -> {
+                    sink += Prog1B.ternarySearch(poolView, 0, numRecords - 1, hitKeys[next[0]++ & (NUM_KEYS - 1)]);
+                    return 1;
+                });
+                pool.close();
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't open " + fileName + " through a buffer pool.");
+            }
+            measure(name, "fence-hit", view, () -> {
+                sink += fences.search(view, numRecords, hitKeys[next[0]++ & (NUM_KEYS - 1)]);
+                return 1;
+            });
+            measure(name, "batch-hit", view, () -> {
+                sink += Prog1B.lookupBounds(view, numRecords, null, 
+                    SearchStrategy.forName("ternary", view, numRecords), hitKeys)[0];
+                return NUM_KEYS;
+            });
+            ResultCache cache = new ResultCache(fileRef, reader, 64L << 20); // Holds the result of every hit key
+            for (long key : hitKeys) {
+                long first = Prog1B.ternarySearch(view, 0, numRecords - 1, key); // First match
+                long end = Prog1B.ternarySearch(view, first, numRecords - 1, key + 1); // Just past the last
+                DataRecord[] matches = new DataRecord[(int) (end - first)]; // Decoded matches
+                for (long r = first; r < end; r++) {
+                    view.moveTo(r);
+                    matches[(int) (r - first)] = view.materialize();
+                }
+                cache.put((int) key, (int) key, matches);
+            }
+            measure(name, "cache-hit", view, () -> {
+                long key = hitKeys[next[0]++ & (NUM_KEYS - 1)]; // Key looked up
+                sink += cache.get((int) key, (int) key).length;
+                return 1;
+            });
+            measure(name, "scan", view, () -> {
+                for (long i = 0; i < numRecords; i++) {
+                    view.moveTo(i);
+                    sink += view.materialize().getCreditsIssued();
+                }
+                return numRecords;
+            });
+            int[] lows = {Integer.MIN_VALUE, 100001, Integer.MIN_VALUE, 2015}; // firstYear>=2015, creditsRetired>100000
+            int[] highs = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+            Prog1B.ScanKernel[] kernels = {new ScalarScanKernel(), Prog1B.ScanKernel.load(false)}; // Kernels compared
+            for (Prog1B.ScanKernel kernel : kernels) {
+                measure(name, "where-" + kernel.describe().split(",")[0], view, () -> {
+                    long[] sums = new long[lows.length]; // Totals of the matching records
+                    sink += Prog1B.filterRecords(reader, layout, 0, numRecords, kernel, lows, highs, false, sums);
+                    return numRecords;
+                });
+            }
+            measure(name, "scan-stream", view, () -> {
+                try (Stream<DataRecord> scanned = RecordScan.stream(reader, layout, 0, numRecords, null)) {
+                    sink += scanned.mapToLong(DataRecord::getCreditsIssued).sum();
+                }
+                return numRecords;
+            });
+            reader.close();
+        }
+    }
+
+    /*
+     * static long mostCommonKey -- finds the credits issued 
+     * value shared by the longest run of records.
+    */
+    static long mostCommonKey(RecordView view, long numRecords) {
+        long bestKey = 0; // Key of the longest run so far
+        long bestLength = 0; // Length of the longest run so far
+        long runLength = 0; // Length of the current run
+        long previous = Long.MIN_VALUE; // Key of the previous record
+        for (long i = 0; i < numRecords; i++) {
+            view.moveTo(i);
+            long key = view.getCreditsIssued(); // Key of this record
+            runLength = key == previous ? runLength + 1 : 1;
+            previous = key;
+            if (runLength > bestLength) {
+                bestLength = runLength;
+                bestKey = key;
+            }
+        }
+        return bestKey;
+    }
+
+    /*
+     * static void measure -- warms up one benchmark, then runs 
+     * it for MEASURE_NANOS and prints its results.
+     * 
+     * @return: none
+     * @params: String file -- name printed for the file.
+     * String benchmark -- name printed for the benchmark.
+     * RecordView view -- view whose moves are counted as probes.
+     * LongSupplier op -- runs the benchmark once and returns 
+     *  the number of operations it did
+    */
+    static void measure(String file, String benchmark, RecordView view, LongSupplier op) {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS; // When warming up stops
+        while (System.nanoTime() < warmupEnd) {
+            op.getAsLong();
+        }
+
+        long ops = 0; // Operations done while measuring
+        long startMoves = view.getMoves(); // Probes before measuring
+        long startBytes = allocatedBytes(); // Bytes allocated before measuring
+        long start = System.nanoTime(); // When measuring started
+        long elapsed; // Time spent measuring so far
+        do {
+            ops += op.getAsLong();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        long bytes = allocatedBytes() - startBytes; // Bytes allocated while measuring
+
+        System.out.println(String.format("%-24s %-20s %14.1f %12s %10.2f", file, benchmark, 
+            ops * 1e9 / elapsed, startBytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops), 
+            (double) (view.getMoves() - startMoves) / ops));
+    }
+
+    /*
+     * static long allocatedBytes -- bytes allocated so far by 
+     * this thread, or -1 if the JVM can't tell.
+    */
+    static long allocatedBytes() {
+        try {
+            return ManagementFactory.getPlatformMXBean(ThreadMXBean.class).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+}
+
+/*
+ * FenceIndex
+ * 
+ * Sparse in-memory index over the credits issued field. It 
+ * holds the credits issued value of every Kth record, with K 
+ * picked so that the credits issued values of K records fill 
+ * about one block. Fields are fixed width, so the block of 
+ * fence i starts at the position of record i * K and no 
+ * offsets need to be kept. A search looks through the fences 
+ * in memory to find the one block the key can be in and only 
+ * runs ternarySearch inside that block, so a lookup touches 
+ * about one block of the file.
+ * 
+ * The index is saved next to the data file as <file>.idx, 
+ * behind a Sidecar header, and reused on later runs only while 
+ * that header still matches the data file: its length, 
+ * modification time, CRC32 of its first and last CHECK_BYTES 
+ * and footer field lengths. Otherwise it is rebuilt.
+ * 
+ * static FenceIndex open(fileRef, dataReader)
+ * long search(probe, numRecords, key)
+*/
+class FenceIndex {
+    static final int MAGIC = 0x46454E43; // "FENC", marks a fence index file
+    static final int BLOCK_BYTES = 4096; // Target size of the block between two fences
+
+    private final int spacing; // Number of records between two fences (K)
+    private final int[] keys; // Credits issued value of every Kth record
+
+    private FenceIndex(int spacing, int[] keys) {
+        this.spacing = spacing;
+        this.keys = keys;
+    }
+
+    /*
+     * static FenceIndex open -- loads the fence index saved 
+     * next to the data file, or builds and saves a new one if 
+     * there is none or it no longer matches the data file.
+     * 
+     * @return: FenceIndex over the data file
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+    */
+    static FenceIndex open(File fileRef, RecordReader dataReader) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        int[] fieldLengths = layout.getFieldLengths(); // Lengths of string fields in records
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        File indexRef = new File(fileRef.getPath() + ".idx"); // Sidecar file holding the index
+
+        if (indexRef.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexRef)))) {
+                if (Sidecar.checkHeader(in, MAGIC, dataReader, fieldLengths)) {
+                    int spacing = in.readInt(); // Records between two fences
+                    int count = in.readInt(); // Number of fences
+                    int[] keys = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        keys[i] = in.readInt();
+                    }
+                    return new FenceIndex(spacing, keys);
+                }
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't read the fence index; rebuilding it.");
+            }
+        }
+
+        // Build the index by reading the credits issued value of every Kth record
+        int spacing = (int) Math.max(2, BLOCK_BYTES / layout.getStride(RecordLayout.CREDITS_ISSUED)); // Records between two fences
+        int count = (int) ((numRecords + spacing - 1) / spacing); // Number of fences
+        int[] keys = new int[count];
+        RecordView probe = new RecordView(dataReader, layout); // Reads the fence records
+        for (int i = 0; i < count; i++) {
+            probe.moveTo((long) i * spacing);
+            keys[i] = probe.getCreditsIssued();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexRef)))) {
+            Sidecar.writeHeader(out, MAGIC, dataReader, fieldLengths);
+            out.writeInt(spacing);
+            out.writeInt(count);
+            for (int key : keys) {
+                out.writeInt(key);
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't save the fence index; it will be rebuilt next run.");
+        }
+        return new FenceIndex(spacing, keys);
+    }
+
+    /*
+     * long search -- finds the same lower bound as ternarySearch 
+     * over the whole file, but picks the block in memory first.
+     * 
+     * @return: long holding the index of the first record with 
+     *  credits issued >= key, or numRecords if there is none
+     * @params: RecordView probe -- flyweight view over the 
+     *  mapped file.
+     * long numRecords -- the number of records in the file.
+     * long key -- the value we are searching for
+    */
+    long search(RecordView probe, long numRecords, long key) {
+        // Find the first fence whose value is not less than the key
+        int low = 0; // First fence that may be it
+        int high = keys.length; // One past the last fence that may be it
+        while (low < high) {
+            int mid = (low + high) >>> 1; // Middle fence of what is left
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // The answer is past the previous fence and no further than this one
+        if (low == 0) {
+            return 0;
+        }
+        long blockStart = (long) (low - 1) * spacing + 1; // Record after the previous fence
+        long blockEnd = low < keys.length ? (long) low * spacing : numRecords; // Last place the answer can be
+        return Prog1B.ternarySearch(probe, blockStart, blockEnd - 1, key);
+    }
+}
+
+/*
+ * ZoneMap
+ * 
+ * Smallest and largest value of each int field (credits 
+ * issued, retired and remaining, and firstYear) for every 
+ * block of blockRecords neighbouring records, with blocks 
+ * holding about BLOCK_BYTES of records. Only credits issued is 
+ * sorted, so a filter on the other fields can't be searched 
+ * for; instead a block whose range of a filtered field lies 
+ * outside the filter can't hold a match and isn't read at all 
+ * (see Prog1B.printFiltered). The records of the blocks that 
+ * are read are tested by a ScanKernel.
+ * 
+ * The zone map is saved next to the data file as <file>.zone 
+ * and reused while its Sidecar header matches the data file.
+ * 
+ * A filter is a list of conditions on the int fields joined 
+ * by commas or "and", each a field name, one of = < <= > >=, 
+ * and a value, or = and a min..max range, such as 
+ * "firstYear>=2015, creditsRetired>100000".
+ * 
+ * static ZoneMap open(fileRef, dataReader)
+ * static long[][] parseFilter(filter)
+ * ArrayList<long[]> candidateRanges(bounds)
+ * int getNumBlocks()
+*/
+class ZoneMap {
+    static final int MAGIC = 0x5A4F4E45; // "ZONE", marks a zone map file
+    static final int BLOCK_BYTES = 1 << 16; // Target size of the records of a block
+    static final int MIN_BLOCK_RECORDS = 16; // Fewest records in a block
+    // Names of the int fields, in field number order from RecordLayout.CREDITS_ISSUED
+    static final String[] FIELD_NAMES = {"creditsIssued", "creditsRetired", "creditsRemaining", "firstYear"};
+    private static final Pattern CONDITION = Pattern.compile(
+        "\\s*(\\w+)\\s*(<=|>=|==|=|<|>)\\s*(-?\\d+)(?:\\.\\.(-?\\d+))?\\s*"); // One condition of a filter
+
+    private final int blockRecords; // Records in every block but the last
+    private final int[][] mins; // Smallest value of each int field in each block
+    private final int[][] maxes; // Largest value of each int field in each block
+    private final long numRecords; // Number of records in the data file
+
+    private ZoneMap(int blockRecords, int[][] mins, int[][] maxes, long numRecords) {
+        this.blockRecords = blockRecords;
+        this.mins = mins;
+        this.maxes = maxes;
+        this.numRecords = numRecords;
+    }
+
+    public int getNumBlocks() { return mins[0].length; }
+
+    /*
+     * static ZoneMap open -- loads the zone map saved next to 
+     * the data file, or builds and saves a new one with one 
+     * RecordScan over the int fields if there is none or it 
+     * no longer matches the data file.
+     * 
+     * @return: ZoneMap over the data file
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+    */
+    static ZoneMap open(File fileRef, RecordReader dataReader) {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        int[] fieldLengths = layout.getFieldLengths(); // Lengths of string fields in records
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        File zoneRef = new File(fileRef.getPath() + ".zone"); // Sidecar file holding the zone map
+
+        if (zoneRef.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(zoneRef)))) {
+                if (Sidecar.checkHeader(in, MAGIC, dataReader, fieldLengths)) {
+                    int blockRecords = in.readInt(); // Records in a block
+                    int numBlocks = in.readInt(); // Number of blocks
+                    int[][] mins = new int[FIELD_NAMES.length][numBlocks];
+                    int[][] maxes = new int[FIELD_NAMES.length][numBlocks];
+                    for (int b = 0; b < numBlocks; b++) {
+                        for (int f = 0; f < FIELD_NAMES.length; f++) {
+                            mins[f][b] = in.readInt();
+                            maxes[f][b] = in.readInt();
+                        }
+                    }
+                    return new ZoneMap(blockRecords, mins, maxes, numRecords);
+                }
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't read the zone map; rebuilding it.");
+            }
+        }
+
+        // Build the zone map from the int fields of every record
+        int blockRecords = Math.max(MIN_BLOCK_RECORDS, BLOCK_BYTES / Math.max(1, layout.getRecordBytes()));
+        int numBlocks = (int) ((numRecords + blockRecords - 1) / blockRecords); // Number of blocks
+        int[][] mins = new int[FIELD_NAMES.length][numBlocks];
+        int[][] maxes = new int[FIELD_NAMES.length][numBlocks];
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            Arrays.fill(mins[f], Integer.MAX_VALUE);
+            Arrays.fill(maxes[f], Integer.MIN_VALUE);
+        }
+        RecordScan scan = new RecordScan(dataReader, layout, 0, numRecords, RecordScan.INT_FIELDS, null); // Reads them
+        RecordView view = scan.getView(); // View the scan moves
+        while (scan.advance()) {
+            int b = (int) (view.getIndex() / blockRecords); // Block of the record
+            for (int f = 0; f < FIELD_NAMES.length; f++) {
+                int value = view.getInt(RecordLayout.CREDITS_ISSUED + f); // Value of the field
+                mins[f][b] = Math.min(mins[f][b], value);
+                maxes[f][b] = Math.max(maxes[f][b], value);
+            }
+        }
+        scan.close();
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(zoneRef)))) {
+            Sidecar.writeHeader(out, MAGIC, dataReader, fieldLengths);
+            out.writeInt(blockRecords);
+            out.writeInt(numBlocks);
+            for (int b = 0; b < numBlocks; b++) {
+                for (int f = 0; f < FIELD_NAMES.length; f++) {
+                    out.writeInt(mins[f][b]);
+                    out.writeInt(maxes[f][b]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't save the zone map; it will be rebuilt next run.");
+        }
+        return new ZoneMap(blockRecords, mins, maxes, numRecords);
+    }
+
+    /*
+     * static long[][] parseFilter -- turns a filter into the 
+     * smallest and largest value each int field may have.
+     * 
+     * @return: long[][] holding {min, max} for every int field 
+     *  in FIELD_NAMES order, or null if the filter is invalid
+     * @params: String filter -- conditions such as "firstYear>=2015"
+    */
+    static long[][] parseFilter(String filter) {
+        long[][] bounds = new long[FIELD_NAMES.length][]; // Values each field may have
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            bounds[f] = new long[] {Integer.MIN_VALUE, Integer.MAX_VALUE};
+        }
+        for (String condition : filter.split(",|\\s[aA][nN][dD]\\s")) {
+            Matcher matcher = CONDITION.matcher(condition);
+            int f = matcher.matches() ? Arrays.asList(FIELD_NAMES).indexOf(matcher.group(1)) : -1; // Field filtered
+            if (f == -1 || (matcher.group(4) != null && !matcher.group(2).startsWith("="))) {
+                return null;
+            }
+            long value, high; // Bounds the condition puts on the field
+            try {
+                value = Long.parseLong(matcher.group(3));
+                high = matcher.group(4) == null ? value : Long.parseLong(matcher.group(4));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            switch (matcher.group(2)) {
+                case "<": high = value - 1; value = Long.MIN_VALUE; break;
+                case "<=": high = value; value = Long.MIN_VALUE; break;
+                case ">": value = value + 1; high = Long.MAX_VALUE; break;
+                case ">=": high = Long.MAX_VALUE; break;
+                default: break; // = or == keeps value..high
+            }
+            bounds[f][0] = Math.max(bounds[f][0], value);
+            bounds[f][1] = Math.min(bounds[f][1], high);
+        }
+        return bounds;
+    }
+
+    /*
+     * ArrayList<long[]> candidateRanges -- the records of the 
+     * blocks that may hold a match, with neighbouring blocks 
+     * joined into one range.
+     * 
+     * @return: ArrayList holding {first, end} record ranges in 
+     *  file order
+     * @params: long[][] bounds -- result of parseFilter
+    */
+    ArrayList<long[]> candidateRanges(long[][] bounds) {
+        ArrayList<long[]> ranges = new ArrayList<>(); // Ranges of the blocks kept
+        for (int b = 0; b < getNumBlocks(); b++) {
+            boolean possible = true; // Whether every field's range meets the filter
+            for (int f = 0; f < FIELD_NAMES.length && possible; f++) {
+                possible = maxes[f][b] >= bounds[f][0] && mins[f][b] <= bounds[f][1];
+            }
+            if (!possible) {
+                continue;
+            }
+            long first = (long) b * blockRecords; // First record of the block
+            long end = Math.min(numRecords, first + blockRecords); // Just past its last record
+            if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == first) {
+                ranges.get(ranges.size() - 1)[1] = end;
+            } else {
+                ranges.add(new long[] {first, end});
+            }
+        }
+        return ranges;
+    }
+}
+
+/*
+ * ScalarScanKernel
+ * 
+ * ScanKernel that tests one record at a time.
+ * 
+ * int filter(columns, count, lows, highs, selected, sums)
+ * String describe()
+*/
+class ScalarScanKernel implements Prog1B.ScanKernel {
+    public int filter(int[][] columns, int count, int[] lows, int[] highs, boolean[] selected, long[] sums) {
+        int matched = 0; // Records marked so far
+        for (int i = 0; i < count; i++) {
+            boolean keep = true; // Whether every field is within its bounds
+            for (int f = 0; f < columns.length && keep; f++) {
+                keep = columns[f][i] >= lows[f] && columns[f][i] <= highs[f];
+            }
+            selected[i] = keep;
+            if (keep) {
+                matched++;
+                for (int f = 0; f < columns.length; f++) {
+                    sums[f] += columns[f][i];
+                }
+            }
+        }
+        return matched;
+    }
+
+    public String describe() {
+        return "scalar";
+    }
+}
+
+/*
+ * RecordScan
+ * 
+ * Sequential scan over a range of records, used by the jobs 
+ * that walk many records in order: printing search results 
+ * (and the first, middle and last five with --pread or 
+ * --pool), --aggregate and the --columnar and --dictionary 
+ * copies. Instead of a read per field, the range is read in 
+ * chunks of about CHUNK_BYTES with positional reads on the 
+ * file's channel, widened to multiples of ALIGN_BYTES, and 
+ * every record of a chunk is decoded from memory. While one 
+ * chunk is decoded the next one is read on one of a fixed set 
+ * of read-ahead threads shared by all scans, so a long scan 
+ * waits on the disk at most once per chunk. The first chunk 
+ * is read by the caller, so a short range costs no thread 
+ * hand-off. Reads bypass the mapping and any buffer pool, so 
+ * a scan doesn't evict the pages that searches keep hot.
+ * 
+ * Only the bytes of the fields asked for are read. In a row or 
+ * dictionary file they merge into one read per chunk, and in a 
+ * columnar file there is one read per column.
+ * 
+ * The scan moves one RecordView from record to record. A 
+ * filter is handed that view, so a record can be skipped on its 
+ * int fields or dictionary codes before a DataRecord is made. 
+ * nextBatch instead gathers the int fields of many records at 
+ * once into int arrays for a ScanKernel.
+ * 
+ * static Stream<DataRecord> stream(reader, layout, first, end, filter)
+ * RecordScan(reader, layout, first, end, fields, filter)
+ * RecordView getView()
+ * boolean advance()
+ * int nextBatch(columns)
+ * boolean hasNext()
+ * DataRecord next()
+ * void close()
+*/
+class RecordScan implements Iterator<DataRecord>, AutoCloseable {
+    static final int CHUNK_BYTES = 1 << 20; // Bytes of the fields read at once
+    static final int ALIGN_BYTES = 4096; // Reads start and end on multiples of this
+    static final int ALL_FIELDS = (1 << RecordLayout.NUM_FIELDS) - 1; // Field mask of every field
+    static final int INT_FIELDS = ALL_FIELDS & -(1 << RecordLayout.CREDITS_ISSUED); // Field mask of the int fields
+
+    // Threads reading ahead for every scan, one per core; daemons so an unfinished scan never holds up the exit
+    private static final ExecutorService readAhead = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "scan-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final RecordReader reader; // Data file being scanned
+    private final RecordLayout layout; // Where the fields of each record are
+    private final long end; // One past the last record of the range
+    private final int fields; // Bit f is set for each field number f that is read
+    private final long chunkRecords; // Records in a full chunk
+    private final Predicate<RecordView> filter; // Keeps the records it is true for, or null for all
+    private final ChunkReader chunkReader; // Serves the view from the current chunk
+    private final RecordView view; // Moved from record to record
+    private Future<Chunk> nextChunk; // Read of the chunk after the current one, or null
+    private long chunkEnd; // One past the last record of the current chunk
+    private long index; // Record under the view, first - 1 before the first advance
+    private boolean ready; // Whether hasNext moved to a record next hasn't returned yet
+
+    /*
+     * Chunk -- the bytes of the fields of records first up to 
+     * (not including) end, as one buffer per merged read.
+    */
+    static final class Chunk {
+        final long end; // One past the last record of the chunk
+        final long[] starts; // File position of the first byte of each buffer
+        final ByteBuffer[] spans; // Bytes read from the file
+
+        Chunk(long end, long[] starts, ByteBuffer[] spans) {
+            this.end = end;
+            this.starts = starts;
+            this.spans = spans;
+        }
+    }
+
+    /*
+     * ChunkReader -- RecordReader over the chunk in memory, so 
+     * the view and the layout read it like the file itself.
+    */
+    static final class ChunkReader extends RecordReader {
+        private Chunk chunk; // Chunk being read
+        private int last; // Buffer holding the last position read
+
+        ChunkReader(long fileLength) {
+            super(fileLength);
+        }
+
+        /*
+         * void setChunk -- makes the reader read the given chunk.
+        */
+        void setChunk(Chunk chunk) {
+            this.chunk = chunk;
+            last = 0;
+        }
+
+        /*
+         * private int span -- the buffer holding the given 
+         * position, trying the last one used first.
+        */
+        private int span(long position) {
+            if (position - chunk.starts[last] >= 0 && position - chunk.starts[last] < chunk.spans[last].limit()) {
+                return last;
+            }
+            for (int s = 0; s < chunk.spans.length; s++) {
+                if (position >= chunk.starts[s] && position - chunk.starts[s] < chunk.spans[s].limit()) {
+                    last = s;
+                    return s;
+                }
+            }
+            throw new IndexOutOfBoundsException("position " + position + " isn't in the chunk");
+        }
+
+        public int getInt(long position) {
+            int s = span(position); // Buffer holding the int
+            return chunk.spans[s].getInt((int) (position - chunk.starts[s]));
+        }
+
+        public long getBytes(long position, byte[] dst) {
+            int s = span(position); // Buffer holding the bytes
+            chunk.spans[s].get((int) (position - chunk.starts[s]), dst);
+            return position + dst.length;
+        }
+
+        public void close() {
+            // Nothing is open, the chunk belongs to the scan
+        }
+
+        /*
+         * void getInts -- reads count ints that are stride bytes 
+         * apart, starting at the given position, into dst. They 
+         * are one field of neighbouring records, so they lie in 
+         * one buffer.
+        */
+        void getInts(long position, long stride, int[] dst, int count) {
+            int s = span(position); // Buffer holding the ints
+            ByteBuffer buffer = chunk.spans[s]; // Bytes of that buffer
+            int offset = (int) (position - chunk.starts[s]); // Position of the first int in it
+            for (int i = 0; i < count; i++) {
+                dst[i] = buffer.getInt(offset + (int) (i * stride));
+            }
+        }
+    }
+
+    /*
+     * RecordScan -- prepares a scan; nothing is read until 
+     * the first advance or hasNext.
+     * 
+     * @params: RecordReader reader -- the data file.
+     * RecordLayout layout -- result of RecordLayout.of(reader).
+     * long first -- index of the first record to scan
+     * long end -- index just past the last record to scan
+     * int fields -- bit f set for every field number f the 
+     *  filter or the caller reads, ALL_FIELDS to materialize
+     * Predicate<RecordView> filter -- records to keep, or null
+    */
+    public RecordScan(RecordReader reader, RecordLayout layout, long first, long end, int fields, 
+            Predicate<RecordView> filter) {
+        this.reader = reader;
+        this.layout = layout;
+        this.end = end;
+        this.fields = fields;
+        this.filter = filter;
+        int recordBytes = 0; // Bytes read for each record
+        for (int f = 0; f < RecordLayout.NUM_FIELDS; f++) {
+            recordBytes += (fields & (1 << f)) != 0 ? layout.getWidth(f) : 0;
+        }
+        this.chunkRecords = Math.max(1, CHUNK_BYTES / Math.max(recordBytes, 1));
+        this.chunkReader = new ChunkReader(reader.length());
+        this.view = new RecordView(chunkReader, layout);
+        this.index = first - 1;
+        this.chunkEnd = first;
+    }
+
+    /*
+     * static Stream<DataRecord> stream -- the records of a 
+     * range that the filter keeps, in file order. Closing the 
+     * stream stops the read-ahead.
+     * 
+     * @return: Stream holding a DataRecord per kept record
+     * @params: RecordReader reader -- the data file.
+     * RecordLayout layout -- result of RecordLayout.of(reader).
+     * long first -- index of the first record to scan
+     * long end -- index just past the last record to scan
+     * Predicate<RecordView> filter -- records to keep, or null
+    */
+    static Stream<DataRecord> stream(RecordReader reader, RecordLayout layout, long first, long end, 
+            Predicate<RecordView> filter) {
+        RecordScan scan = new RecordScan(reader, layout, first, end, ALL_FIELDS, filter);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan, 
+            Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(scan::close);
+    }
+
+    /*
+     * public RecordView getView() -- the view the scan moves; 
+     * after advance returns true it is on the kept record.
+    */
+    public RecordView getView() { return view; }
+
+    /*
+     * public boolean advance() -- moves the view to the next 
+     * record the filter keeps.
+     * 
+     * @return: boolean, false once the range is used up
+    */
+    public boolean advance() {
+        while (index + 1 < end) {
+            index++;
+            if (index == chunkEnd) {
+                loadNextChunk();
+            }
+            view.moveTo(index);
+            if (filter == null || filter.test(view)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * public int nextBatch -- gathers the int fields of the 
+     * next records, up to the length of the columns and never 
+     * past the current chunk, from their stride in the chunk. 
+     * The filter isn't applied. The view is left on the first 
+     * record of the batch, and until the next call it may be 
+     * moved to the others (getIndex() + i) to read them. The 
+     * gathered records and fields are counted on the view.
+     * 
+     * @return: int holding the number of records gathered, 0 
+     *  once the range is used up
+     * @params: int[][] columns -- columns[f] receives int field 
+     *  RecordLayout.CREDITS_ISSUED + f of each record; the 
+     *  scan's fields must include them
+    */
+    public int nextBatch(int[][] columns) {
+        ready = false;
+        if (index + 1 >= end) {
+            return 0;
+        }
+        if (index + 1 == chunkEnd) {
+            loadNextChunk();
+        }
+        long first = index + 1; // First record of the batch
+        int count = (int) Math.min(columns[0].length, chunkEnd - first); // Records in the batch
+        for (int f = 0; f < columns.length; f++) {
+            int field = RecordLayout.CREDITS_ISSUED + f; // Field number of the column
+            chunkReader.getInts(layout.position(first, field), layout.getStride(field), columns[f], count);
+        }
+        index = first + count - 1;
+        view.moveTo(first);
+        view.countRead(count - 1, (long) count * columns.length, 4L * count * columns.length);
+        return count;
+    }
+
+    public boolean hasNext() {
+        if (!ready) {
+            ready = advance();
+        }
+        return ready;
+    }
+
+    public DataRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return view.materialize();
+    }
+
+    /*
+     * public void close() -- stops the read-ahead; the scan 
+     * returns no more records. The read is cancelled without 
+     * interrupting it, since an interrupted read would close 
+     * the file's channel for every other user.
+    */
+    public void close() {
+        if (nextChunk != null) {
+            nextChunk.cancel(false);
+            nextChunk = null;
+        }
+        index = end;
+    }
+
+    /*
+     * private void loadNextChunk -- makes the chunk starting 
+     * at chunkEnd current and starts reading the one after it 
+     * into the buffers of the chunk it replaces.
+    */
+    private void loadNextChunk() {
+        Chunk spare = chunkReader.chunk; // Chunk the view is done with
+        Chunk chunk; // Chunk starting at chunkEnd
+        if (nextChunk == null) {
+            chunk = readChunk(chunkEnd, spare);
+            spare = null;
+        } else {
+            try {
+                chunk = nextChunk.get();
+            } catch (ExecutionException | InterruptedException e) {
+                System.out.println("I/O ERROR: Couldn't read from the file.");
+                System.exit(-1);
+                return;
+            }
+        }
+        chunkReader.setChunk(chunk);
+        chunkEnd = chunk.end;
+        if (chunkEnd < end) {
+            long start = chunkEnd; // First record of the chunk read ahead
+            Chunk buffers = spare; // Buffers it is read into, if they are large enough
+            nextChunk = readAhead.submit(() -> readChunk(start, buffers));
+        } else {
+            nextChunk = null;
+        }
+    }
+
+    /*
+     * private Chunk readChunk -- reads the fields of up to 
+     * chunkRecords records starting at the given one. The 
+     * byte range of each field is widened to ALIGN_BYTES (and 
+     * by 3 bytes for a dictionary code read as an int), and 
+     * ranges that overlap are read as one.
+     * 
+     * @return: Chunk holding the bytes read
+     * @params: long first -- index of the first record
+     * Chunk spare -- a chunk whose buffers may be reused, or null
+    */
+    private Chunk readChunk(long first, Chunk spare) {
+        long last = Math.min(end, first + chunkRecords); // One past the last record of the chunk
+        ArrayList<long[]> ranges = new ArrayList<>(); // Start and end of each field's bytes
+        for (int f = 0; f < RecordLayout.NUM_FIELDS; f++) {
+            if ((fields & (1 << f)) != 0) {
+                long from = layout.position(first, f) & -ALIGN_BYTES; // Aligned start of the field's bytes
+                long to = layout.position(last - 1, f) + layout.getWidth(f) + 3; // End of them
+                ranges.add(new long[] {from, Math.min(reader.length(), (to + ALIGN_BYTES - 1) & -ALIGN_BYTES)});
+            }
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        ArrayList<long[]> merged = new ArrayList<>(); // Ranges after joining the overlapping ones
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1); // Range read before it
+            if (previous != null && range[0] <= previous[1]) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+
+        long[] starts = new long[merged.size()]; // File position of each buffer
+        ByteBuffer[] spans = new ByteBuffer[merged.size()]; // Bytes of each merged range
+        for (int s = 0; s < spans.length; s++) {
+            starts[s] = merged.get(s)[0];
+            int length = (int) (merged.get(s)[1] - starts[s]); // Bytes in the range
+            spans[s] = spare != null && s < spare.spans.length && spare.spans[s].capacity() >= length 
+                ? spare.spans[s].clear().limit(length) : ByteBuffer.allocate(length);
+            try {
+                while (spans[s].hasRemaining()) {
+                    if (reader.channel.read(spans[s], starts[s] + spans[s].position()) < 0) {
+                        throw new IndexOutOfBoundsException("read past the end of the file");
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't read from the file.");
+                System.exit(-1);
+            }
+        }
+        return new Chunk(last, starts, spans);
+    }
+}
+
+/*
+ * AggregateTask
+ * 
+ * Fork/join task that totals the credits fields of a range of 
+ * records grouped by the value of one field. Ranges larger 
+ * than LEAF_RECORDS are split in half and run in parallel. 
+ * Each leaf reads its range with its own RecordScan, over only 
+ * the fields it adds up, and fills its own hash map, and the 
+ * maps of the two halves are merged on the way back up, so 
+ * no map is shared between threads.
+ * 
+ * The result maps a field value to {count, creditsIssued, 
+ * creditsRetired, creditsRemaining}.
+*/
+class AggregateTask extends RecursiveTask<HashMap<String, long[]>> {
+    private static final long serialVersionUID = 1L;
+    static final long LEAF_RECORDS = 16384; // Ranges this small are scanned directly
+
+    private final RecordReader reader; // Mapped data file, shared by every task
+    private final RecordLayout layout; // Where the fields of each record are
+    private final int field; // Footer index of the grouping field, -1 for firstYear
+    private final long start; // First record of the range
+    private final long end; // One past the last record of the range
+
+    public AggregateTask(RecordReader reader, RecordLayout layout, int field, long start, long end) {
+        this.reader = reader;
+        this.layout = layout;
+        this.field = field;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected HashMap<String, long[]> compute() {
+        if (end - start > LEAF_RECORDS) {
+            long middle = start + (end - start) / 2; // Where the range is split
+            AggregateTask lower = new AggregateTask(reader, layout, field, start, middle);
+            AggregateTask upper = new AggregateTask(reader, layout, field, middle, end);
+            lower.fork();
+            HashMap<String, long[]> totals = upper.compute(); // Upper half is run on this thread
+            for (Map.Entry<String, long[]> entry : lower.join().entrySet()) {
+                long[] sums = totals.computeIfAbsent(entry.getKey(), k -> new long[4]);
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += entry.getValue()[i];
+                }
+            }
+            return totals;
+        }
+
+        HashMap<String, long[]> totals = new HashMap<>(); // Partial totals of this range
+        int fields = 1 << (field == -1 ? RecordLayout.FIRST_YEAR : field) | 1 << RecordLayout.CREDITS_ISSUED 
+            | 1 << RecordLayout.CREDITS_RETIRED | 1 << RecordLayout.CREDITS_REMAINING; // Fields read
+        RecordScan scan = new RecordScan(reader, layout, start, end, fields, null); // This task's own scan
+        RecordView view = scan.getView(); // View the scan moves over the range
+        Metrics.Span span = Metrics.begin(Metrics.SCAN, view); // Times the scan of this range
+        while (scan.advance()) {
+            String key = field == -1 ? String.valueOf(view.getFirstYear()) : view.getString(field).trim();
+            long[] sums = totals.computeIfAbsent(key, k -> new long[4]);
+            sums[0]++;
+            sums[1] += view.getCreditsIssued();
+            sums[2] += view.getCreditsRetired();
+            sums[3] += view.getCreditsRemaining();
+        }
+        scan.close();
+        Metrics.end(span, end - start);
+        return totals;
+    }
+}
+
+/*
+ * BulkLoader
+ * 
+ * Builds a binary file from a csv export of the Offsets 
+ * Database, taking the place of the Prog1A writer.
+ * 
+ * The csv file is read in runs of about runBytes bytes. The 
+ * lines of a run are parsed into DataRecords in parallel, the 
+ * longest value of every string field is tracked for the 
+ * footer, and the run is sorted by credits issued. If the csv 
+ * needs more than one run, every run is spilled to a temporary 
+ * file and the runs are merged while the binary file is 
+ * written, so inputs larger than the heap can be loaded. Ties 
+ * keep their csv order, as they did in Prog1A.
+ * 
+ * Records are padded to the field lengths and written through 
+ * one large direct buffer instead of a call per field.
+ * 
+ * Fields are parsed the way Prog1A did: the enclosing quotes of 
+ * a quoted field are removed (doubled quotes inside it are 
+ * kept), commas are dropped from numbers, and a missing number 
+ * is 0. Text is decoded as UTF-8 and cut down to ASCII by 
+ * taking the compatibility decomposition (NFKD) and dropping 
+ * what is left outside ASCII, so an accented letter is 
+ * written without its accent and field lengths count ASCII 
+ * bytes. A csv export of the checked-in Offsets-Database.bin 
+ * loads back into the same bytes.
+ * 
+ * static long defaultRunBytes()
+ * static void load(csvRef, binRef, runBytes)
+*/
+class BulkLoader {
+    static final int WRITE_BUFFER_BYTES = 1 << 20; // Size of the output buffer
+    static final int NUM_FIELDS = 13; // Columns in a csv line
+
+    /*
+     * static long defaultRunBytes -- csv bytes to sort in 
+     * memory at once, about an eighth of the heap.
+    */
+    static long defaultRunBytes() {
+        return Math.max(1 << 20, Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    /*
+     * static void load -- builds the binary file.
+     * 
+     * @return: none
+     * @params: File csvRef -- the csv file to read.
+     * File binRef -- the binary file to write.
+     * long runBytes -- csv bytes to sort in memory at once
+    */
+    static void load(File csvRef, File binRef, long runBytes) {
+        int[] fieldLengths = new int[9]; // Longest value of every string field
+        ArrayList<File> runFiles = new ArrayList<>(); // Spilled runs, in csv order
+        DataRecord[] lastRun = null; // Sorted records of the run still in memory
+
+        try (InputStream in = new FileInputStream(csvRef)) {
+            byte[] chunk = new byte[(int) Math.min(runBytes, csvRef.length() + 1)]; // Csv bytes of one run
+            int filled = 0; // Bytes of chunk holding data
+            boolean header = true; // Whether the header line still has to be skipped
+            boolean eof = false;
+
+            while (!eof) {
+                int read = in.readNBytes(chunk, filled, chunk.length - filled); // Bytes added to the run
+                filled += read;
+                eof = filled < chunk.length;
+
+                int[] lines = findLines(chunk, filled, eof); // Start and end of every complete line
+                if (lines.length == 0 && !eof) { // A single line is longer than the chunk
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                    continue;
+                }
+                int firstLine = header && lines.length > 0 ? 1 : 0; // Index of the first data line
+                header = header && lines.length == 0;
+
+                final byte[] runBytesRead = chunk; // Parsed in parallel below
+                DataRecord[] run = IntStream.range(firstLine, lines.length / 2).parallel()
+                    .filter(i -> lines[2*i + 1] > lines[2*i])
+                    .mapToObj(i -> parseLine(runBytesRead, lines[2*i], lines[2*i + 1]))
+                    .toArray(DataRecord[]::new); // Records of this run
+                for (DataRecord record : run) {
+                    updateFieldLengths(fieldLengths, record);
+                }
+                Arrays.sort(run, Comparator.comparingInt(DataRecord::getCreditsIssued));
+
+                if (lastRun != null) {
+                    runFiles.add(spill(lastRun, binRef));
+                }
+                lastRun = run;
+
+                // Move the incomplete last line to the front of the chunk
+                int used = lines.length == 0 ? 0 : nextLineStart(chunk, lines[lines.length - 1], filled);
+                System.arraycopy(chunk, used, chunk, 0, filled - used);
+                filled -= used;
+            }
+
+            if (!runFiles.isEmpty()) {
+                runFiles.add(spill(lastRun, binRef));
+                lastRun = null;
+            }
+            write(binRef, fieldLengths, lastRun, runFiles);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't load " + csvRef + " into " + binRef + ".");
+            System.exit(-1);
+        } finally {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+        }
+    }
+
+    /*
+     * static int[] findLines -- finds the complete lines in a 
+     * chunk of the csv file. Newlines inside quotes do not end 
+     * a line, and a trailing carriage return is left out.
+     * 
+     * @return: int[] holding the start and end of every line
+     * @params: byte[] chunk -- csv bytes.
+     * int filled -- number of bytes of chunk holding data.
+     * boolean eof -- whether the chunk ends the file, making 
+     *  a last line without a newline complete
+    */
+    static int[] findLines(byte[] chunk, int filled, boolean eof) {
+        IntStream.Builder lines = IntStream.builder(); // Start and end of each line
+        boolean quoted = false; // Whether the scan is inside quotes
+        int lineStart = 0; // Start of the current line
+        for (int i = 0; i < filled; i++) {
+            if (chunk[i] == '"') {
+                quoted = !quoted;
+            } else if (chunk[i] == '\n' && !quoted) {
+                lines.add(lineStart).add(i > lineStart && chunk[i - 1] == '\r' ? i - 1 : i);
+                lineStart = i + 1;
+            }
+        }
+        if (eof && lineStart < filled) {
+            lines.add(lineStart).add(chunk[filled - 1] == '\r' ? filled - 1 : filled);
+        }
+        return lines.build().toArray();
+    }
+
+    /*
+     * static int nextLineStart -- position just past the 
+     * newline that ends a line, or filled if there is none.
+    */
+    static int nextLineStart(byte[] chunk, int lineEnd, int filled) {
+        while (lineEnd < filled && chunk[lineEnd] != '\n') {
+            lineEnd++;
+        }
+        return Math.min(lineEnd + 1, filled);
+    }
+
+    /*
+     * static DataRecord parseLine -- turns one csv line into 
+     * a DataRecord.
+     * 
+     * @return: DataRecord holding the line's fields
+     * @params: byte[] chunk -- csv bytes.
+     * int start -- position of the first byte of the line.
+     * int end -- position just past the last byte of the line
+    */
+    static DataRecord parseLine(byte[] chunk, int start, int end) {
+        String[] fields = new String[NUM_FIELDS]; // Columns of the line
+        int field = 0; // Column being read
+        int fieldStart = start; // Start of the column being read
+        boolean quoted = false; // Whether the scan is inside quotes
+        for (int i = start; i <= end && field < NUM_FIELDS; i++) {
+            if (i < end && chunk[i] == '"') {
+                quoted = !quoted;
+            } else if (i == end || (chunk[i] == ',' && !quoted)) {
+                int from = fieldStart; // First byte of the value
+                int to = i; // One past the last byte of the value
+                if (to - from >= 2 && chunk[from] == '"' && chunk[to - 1] == '"') {
+                    from++;
+                    to--;
+                }
+                fields[field++] = toAscii(chunk, from, to);
+                fieldStart = i + 1;
+            }
+        }
+        while (field < NUM_FIELDS) {
+            fields[field++] = "";
+        }
+
+        DataRecord record = new DataRecord();
+        record.setProjectId(fields[0]);
+        record.setProjectName(fields[1]);
+        record.setStatus(fields[2]);
+        record.setScope(fields[3]);
+        record.setType(fields[4]);
+        record.setMethodology(fields[5]);
+        record.setRegion(fields[6]);
+        record.setCountry(fields[7]);
+        record.setState(fields[8]);
+        try {
+            record.setCreditsIssued(parseNumber(fields[9]));
+            record.setCreditsRetired(parseNumber(fields[10]));
+            record.setCreditsRemaining(parseNumber(fields[11]));
+            record.setFirstYear(parseNumber(fields[12]));
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Bad number in csv line for project " + fields[0] + ".");
+            System.exit(-1);
+        }
+        return record;
+    }
+
+    /*
+     * static String toAscii -- decodes a csv value and cuts it 
+     * down to ASCII the way Prog1A did. Values that are 
+     * already ASCII are copied as they are.
+     * 
+     * @return: String holding only ASCII characters
+     * @params: byte[] chunk -- csv bytes.
+     * int from -- position of the first byte of the value.
+     * int to -- position just past the last byte of the value
+    */
+    static String toAscii(byte[] chunk, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chunk[i] < 0) {
+                String decomposed = Normalizer.normalize(new String(chunk, from, to - from, 
+                    StandardCharsets.UTF_8), Normalizer.Form.NFKD); // Accents split from their letters
+                StringBuilder ascii = new StringBuilder(decomposed.length());
+                for (int c = 0; c < decomposed.length(); c++) {
+                    if (decomposed.charAt(c) < 0x80) {
+                        ascii.append(decomposed.charAt(c));
+                    }
+                }
+                return ascii.toString();
+            }
+        }
+        return new String(chunk, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * static int parseNumber -- parses a csv number such as 
+     * "7,984,006". An empty value is 0.
+    */
+    static int parseNumber(String value) {
+        String digits = value.replace(",", "").trim(); // Number without grouping
+        return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+    }
+
+    /*
+     * static void updateFieldLengths -- grows the field lengths 
+     * to fit the string fields of a record.
+    */
+    static void updateFieldLengths(int[] fieldLengths, DataRecord record) {
+        String[] strings = {record.getProjectId(), record.getProjectName(), record.getStatus(), 
+            record.getScope(), record.getType(), record.getMethodology(), record.getRegion(), 
+            record.getCountry(), record.getState()}; // String fields in file order
+        for (int i = 0; i < strings.length; i++) {
+            fieldLengths[i] = Math.max(fieldLengths[i], strings[i].length());
+        }
+    }
+
+    /*
+     * static File spill -- writes a sorted run to a temporary 
+     * file next to the binary file.
+     * 
+     * @return: File holding the run
+     * @params: DataRecord[] run -- records sorted by credits issued.
+     * File binRef -- the binary file being built.
+    */
+    static File spill(DataRecord[] run, File binRef) throws IOException {
+        File runFile = File.createTempFile("run", ".tmp", binRef.getAbsoluteFile().getParentFile());
+        runFile.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(runFile), WRITE_BUFFER_BYTES))) {
+            out.writeInt(run.length);
+            for (DataRecord record : run) {
+                out.writeUTF(record.getProjectId());
+                out.writeUTF(record.getProjectName());
+                out.writeUTF(record.getStatus());
+                out.writeUTF(record.getScope());
+                out.writeUTF(record.getType());
+                out.writeUTF(record.getMethodology());
+                out.writeUTF(record.getRegion());
+                out.writeUTF(record.getCountry());
+                out.writeUTF(record.getState());
+                out.writeInt(record.getCreditsIssued());
+                out.writeInt(record.getCreditsRetired());
+                out.writeInt(record.getCreditsRemaining());
+                out.writeInt(record.getFirstYear());
+            }
+        }
+        return runFile;
+    }
+
+    /*
+     * static DataRecord readSpilled -- reads the next record 
+     * written by spill.
+    */
+    static DataRecord readSpilled(DataInputStream in) throws IOException {
+        DataRecord record = new DataRecord();
+        record.setProjectId(in.readUTF());
+        record.setProjectName(in.readUTF());
+        record.setStatus(in.readUTF());
+        record.setScope(in.readUTF());
+        record.setType(in.readUTF());
+        record.setMethodology(in.readUTF());
+        record.setRegion(in.readUTF());
+        record.setCountry(in.readUTF());
+        record.setState(in.readUTF());
+        record.setCreditsIssued(in.readInt());
+        record.setCreditsRetired(in.readInt());
+        record.setCreditsRemaining(in.readInt());
+        record.setFirstYear(in.readInt());
+        return record;
+    }
+
+    /*
+     * static void write -- writes the records in credits 
+     * issued order followed by the field lengths footer.
+     * 
+     * @return: none
+     * @params: File binRef -- the binary file to write.
+     * int[] fieldLengths -- longest value of every string field.
+     * DataRecord[] sorted -- every record, sorted, if the csv 
+     *  fit in one run, otherwise null.
+     * ArrayList<File> runFiles -- spilled runs to merge when 
+     *  sorted is null
+    */
+    static void write(File binRef, int[] fieldLengths, DataRecord[] sorted, 
+    ArrayList<File> runFiles) throws IOException {
+        int recordLength = Prog1B.getRecordLength(fieldLengths); // Total length of a record
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES, recordLength)); // Output buffer
+
+        try (FileChannel out = FileChannel.open(binRef.toPath(), StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (sorted != null) {
+                for (DataRecord record : sorted) {
+                    if (buffer.remaining() < recordLength) {
+                        flush(out, buffer);
+                    }
+                    record.dumpObject(buffer, fieldLengths);
+                }
+            } else {
+                // Merge the runs; ties go to the earlier run to keep csv order
+                DataInputStream[] inputs = new DataInputStream[runFiles.size()]; // One reader per run
+                int[] remaining = new int[runFiles.size()]; // Records left in each run
+                DataRecord[] heads = new DataRecord[runFiles.size()]; // Next record of each run
+                PriorityQueue<Integer> queue = new PriorityQueue<>(
+                    Comparator.<Integer>comparingInt(run -> heads[run].getCreditsIssued())
+                    .thenComparingInt(run -> run)); // Runs ordered by their next record
+                try {
+                    for (int run = 0; run < inputs.length; run++) {
+                        inputs[run] = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(runFiles.get(run)), 1 << 16));
+                        remaining[run] = inputs[run].readInt();
+                        if (remaining[run]-- > 0) {
+                            heads[run] = readSpilled(inputs[run]);
+                            queue.add(run);
+                        }
+                    }
+                    while (!queue.isEmpty()) {
+                        int run = queue.poll(); // Run holding the smallest record
+                        if (buffer.remaining() < recordLength) {
+                            flush(out, buffer);
+                        }
+                        heads[run].dumpObject(buffer, fieldLengths);
+                        if (remaining[run]-- > 0) {
+                            heads[run] = readSpilled(inputs[run]);
+                            queue.add(run);
+                        }
+                    }
+                } finally {
+                    for (DataInputStream input : inputs) {
+                        if (input != null) {
+                            input.close();
+                        }
+                    }
+                }
+            }
+
+            if (buffer.remaining() < fieldLengths.length * 4) {
+                flush(out, buffer);
+            }
+            for (int length : fieldLengths) {
+                buffer.putInt(length);
+            }
+            flush(out, buffer);
+        }
+    }
+
+    /*
+     * static void flush -- writes everything in the buffer to 
+     * the channel and empties the buffer.
+    */
+    static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+/*
+ * DeltaStore
+ * 
+ * Changes made to a data file since it was written, kept the 
+ * way a log-structured merge tree keeps them so that a daily 
+ * update of a few thousand rows doesn't rewrite the file.
+ * 
+ * Changes are keyed by projectId. A change is either a new 
+ * version of a record (an update or an insert) or a tombstone 
+ * that deletes the project. They are collected in a write 
+ * buffer sorted by projectId and flushed to a new delta file 
+ * <file>.delta.<n> once FLUSH_ENTRIES of them have piled up or 
+ * flush is called. Delta files are written to a temporary file 
+ * of their own first and then linked in under the next free 
+ * number, so a reader never sees half of one and two writers 
+ * never replace each other's file.
+ * 
+ * Opening the store applies every delta file in order, later 
+ * ones winning, and sorts the live delta records by credits 
+ * issued. A search then merges the records of the data file, 
+ * minus those with a changed projectId, with the live delta 
+ * records (see Prog1B.printRecords and BatchSearch.Matches). 
+ * A store that is only read can be shared between threads.
+ * 
+ * Once COMPACT_FILES delta files exist, a background thread 
+ * folds them into the data file: the file and the deltas are 
+ * merged in one sequential pass into a new file, which then 
+ * atomically replaces the data file, and the delta files it 
+ * holds are deleted. Only one compaction of a file runs at a 
+ * time; one started meanwhile, by this program or another, 
+ * is skipped. The program waits for a compaction to finish 
+ * before it exits. One cut short anyway (the program 
+ * killed) leaves the data file and deltas as they were (at 
+ * worst some deltas are applied twice, which changes nothing) 
+ * and is simply redone later. Interactive, --batch and 
+ * --serve searches read the deltas; the other modes read the 
+ * data file as it was last compacted.
+ * 
+ * Delta file: the magic number, the number of changes, then 
+ * for each one a byte that is 1 for a record and 0 for a 
+ * tombstone, followed by the record's 9 strings (writeUTF) 
+ * and 4 ints, or only by the projectId of a tombstone.
+ * 
+ * static DeltaStore open(fileRef, padLengths)
+ * static boolean compact(fileRef)
+ * static Thread compactInBackground(fileRef)
+ * void put(record)
+ * void putAll(csvRef)
+ * void delete(projectId)
+ * void flush()
+ * boolean isEmpty()
+ * int getNumFiles()
+ * boolean shadows(projectId)
+ * int lowerBound(key)
+ * DataRecord getLive(i)
+*/
+class DeltaStore {
+    static final int MAGIC = 0x44454C54; // "DELT", marks a delta file
+    static final int FLUSH_ENTRIES = 4096; // Changes in the write buffer before it is flushed
+    static final int COMPACT_FILES = 8; // Delta files that start a background compaction
+
+    private final File fileRef; // The data file the changes are to
+    private final int[] padLengths; // Lengths to pad record strings to, or null
+    private final TreeMap<String, DataRecord> changes = new TreeMap<>(); // Every change; null is a tombstone
+    private final TreeMap<String, DataRecord> buffer = new TreeMap<>(); // Changes not yet in a delta file
+    private DataRecord[] live = new DataRecord[0]; // Changed records sorted by credits issued
+    private boolean liveStale = false; // Whether changes moved on since live was sorted
+    private int numFiles; // Delta files applied
+    private int lastSeq; // Number of the newest delta file applied
+
+    private DeltaStore(File fileRef, int[] padLengths) {
+        this.fileRef = fileRef;
+        this.padLengths = padLengths;
+    }
+
+    /*
+     * static DeltaStore open -- reads every delta file of 
+     * the data file.
+     * 
+     * @return: DeltaStore holding their changes
+     * @params: File fileRef -- the data file.
+     * int[] padLengths -- string field lengths of the data 
+     *  file; record strings are padded to them so they print 
+     *  like the file's records. null leaves them unpadded.
+    */
+    static DeltaStore open(File fileRef, int[] padLengths) {
+        DeltaStore store = new DeltaStore(fileRef, padLengths);
+        for (File deltaRef : deltaFiles(fileRef)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(deltaRef)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a delta file");
+                }
+                int count = in.readInt(); // Changes in the file
+                for (int i = 0; i < count; i++) {
+                    if (in.readByte() == 1) {
+                        DataRecord record = new DataRecord();
+                        record.setProjectId(in.readUTF());
+                        record.setProjectName(in.readUTF());
+                        record.setStatus(in.readUTF());
+                        record.setScope(in.readUTF());
+                        record.setType(in.readUTF());
+                        record.setMethodology(in.readUTF());
+                        record.setRegion(in.readUTF());
+                        record.setCountry(in.readUTF());
+                        record.setState(in.readUTF());
+                        record.setCreditsIssued(in.readInt());
+                        record.setCreditsRetired(in.readInt());
+                        record.setCreditsRemaining(in.readInt());
+                        record.setFirstYear(in.readInt());
+                        store.changes.put(record.getProjectId(), record);
+                    } else {
+                        store.changes.put(in.readUTF(), null);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("I/O ERROR: Couldn't read the delta file " + deltaRef + ".");
+                System.exit(-1);
+            }
+            store.numFiles++;
+            store.lastSeq = sequence(deltaRef);
+        }
+        store.sortLive();
+        return store;
+    }
+
+    /*
+     * static File[] deltaFiles -- the delta files of a data 
+     * file, oldest first.
+    */
+    static File[] deltaFiles(File fileRef) {
+        File dir = fileRef.getAbsoluteFile().getParentFile(); // Directory holding the data file
+        String prefix = fileRef.getName() + ".delta."; // Start of every delta file name
+        File[] deltas = dir.listFiles((d, name) -> name.startsWith(prefix) 
+            && name.substring(prefix.length()).matches("[0-9]+"));
+        if (deltas == null) {
+            return new File[0];
+        }
+        Arrays.sort(deltas, Comparator.comparingInt(DeltaStore::sequence));
+        return deltas;
+    }
+
+    /*
+     * static int sequence -- the number at the end of a delta 
+     * file's name.
+    */
+    static int sequence(File deltaRef) {
+        String name = deltaRef.getName(); // Name ending in .delta.<n>
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /*
+     * void put -- records a new version of a record.
+    */
+    void put(DataRecord record) {
+        buffer.put(record.getProjectId(), record);
+        changes.put(record.getProjectId(), record);
+        liveStale = true;
+        if (buffer.size() >= FLUSH_ENTRIES) {
+            flush();
+        }
+    }
+
+    /*
+     * void putAll -- records every row of a csv file in the 
+     * Offsets Database format (read like BulkLoader reads it) 
+     * as a new version of its record.
+     * 
+     * @return: none
+     * @params: File csvRef -- the csv file of changed rows
+    */
+    void putAll(File csvRef) {
+        try {
+            byte[] csv = Files.readAllBytes(csvRef.toPath()); // Daily updates are small
+            int[] lines = BulkLoader.findLines(csv, csv.length, true); // Start and end of every line
+            for (int i = 1; i < lines.length / 2; i++) {
+                if (lines[2*i + 1] > lines[2*i]) {
+                    put(BulkLoader.parseLine(csv, lines[2*i], lines[2*i + 1]));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't read the updates in " + csvRef + ".");
+            System.exit(-1);
+        }
+    }
+
+    /*
+     * void delete -- records a tombstone for a project.
+    */
+    void delete(String projectId) {
+        buffer.put(projectId, null);
+        changes.put(projectId, null);
+        liveStale = true;
+        if (buffer.size() >= FLUSH_ENTRIES) {
+            flush();
+        }
+    }
+
+    /*
+     * void flush -- writes the write buffer to a new delta file.
+    */
+    void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        File[] existing = deltaFiles(fileRef); // Delta files written by anyone so far
+        int seq = Math.max(lastSeq, existing.length == 0 ? 0 : sequence(existing[existing.length - 1])) + 1;
+        File deltaRef = new File(fileRef.getPath() + ".delta." + seq); // The new delta file
+        File tempRef = null; // Written before it is linked in
+        try {
+            tempRef = Files.createTempFile(fileRef.getAbsoluteFile().getParentFile().toPath(), 
+                fileRef.getName() + ".delta.", ".tmp").toFile();
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't create a temporary file for " + deltaRef + ".");
+            System.exit(-1);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempRef)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(buffer.size());
+            for (Map.Entry<String, DataRecord> change : buffer.entrySet()) {
+                DataRecord record = change.getValue(); // New version, or null for a tombstone
+                if (record == null) {
+                    out.writeByte(0);
+                    out.writeUTF(change.getKey());
+                    continue;
+                }
+                out.writeByte(1);
+                out.writeUTF(record.getProjectId());
+                out.writeUTF(record.getProjectName());
+                out.writeUTF(record.getStatus());
+                out.writeUTF(record.getScope());
+                out.writeUTF(record.getType());
+                out.writeUTF(record.getMethodology());
+                out.writeUTF(record.getRegion());
+                out.writeUTF(record.getCountry());
+                out.writeUTF(record.getState());
+                out.writeInt(record.getCreditsIssued());
+                out.writeInt(record.getCreditsRetired());
+                out.writeInt(record.getCreditsRemaining());
+                out.writeInt(record.getFirstYear());
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't write the delta file " + deltaRef + ".");
+            System.exit(-1);
+        }
+
+        // A link fails instead of replacing a delta file another writer just gave the same number
+        try {
+            while (true) {
+                try {
+                    Files.createLink(deltaRef.toPath(), tempRef.toPath());
+                    Files.delete(tempRef.toPath());
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    deltaRef = new File(fileRef.getPath() + ".delta." + ++seq);
+                } catch (UnsupportedOperationException e) {
+                    Files.move(tempRef.toPath(), deltaRef.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't rename " + tempRef + " to " + deltaRef + ".");
+            System.exit(-1);
+        }
+        System.out.println("Wrote " + buffer.size() + " changes to " + deltaRef + ".");
+        buffer.clear();
+        numFiles++;
+        lastSeq = seq;
+    }
+
+    boolean isEmpty() { return changes.isEmpty(); }
+    int getNumFiles() { return numFiles; }
+
+    /*
+     * boolean shadows -- whether a record of the data file 
+     * with the given projectId was replaced or deleted.
+    */
+    boolean shadows(String projectId) {
+        return changes.containsKey(projectId);
+    }
+
+    /*
+     * int lowerBound -- position of the first live delta 
+     * record whose credits issued value is not less than key.
+    */
+    int lowerBound(long key) {
+        if (liveStale) {
+            sortLive();
+        }
+        int low = 0; // First record that may be the answer
+        int high = live.length; // Last record that may be the answer
+        while (low < high) {
+            int middle = (low + high) >>> 1; // Record probed this step
+            if (live[middle].getCreditsIssued() < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * DataRecord getLive -- the live delta record at the given 
+     * position in credits issued order.
+    */
+    DataRecord getLive(int i) {
+        if (liveStale) {
+            sortLive();
+        }
+        return live[i];
+    }
+
+    /*
+     * private void sortLive -- collects the changed records, 
+     * padded if asked, and sorts them by credits issued. Ties 
+     * stay in projectId order.
+    */
+    private void sortLive() {
+        live = changes.values().stream().filter(record -> record != null)
+            .map(record -> padLengths == null ? record : padded(record))
+            .sorted(Comparator.comparingInt(DataRecord::getCreditsIssued))
+            .toArray(DataRecord[]::new);
+        liveStale = false;
+    }
+
+    /*
+     * private DataRecord padded -- copy of a record with every 
+     * string as fetchObject would read it back from the file: 
+     * padded with spaces to the file's field length and 
+     * decoded from its stored bytes.
+    */
+    private DataRecord padded(DataRecord record) {
+        DataRecord copy = new DataRecord();
+        copy.setProjectId(pad(record.getProjectId(), padLengths[0]));
+        copy.setProjectName(pad(record.getProjectName(), padLengths[1]));
+        copy.setStatus(pad(record.getStatus(), padLengths[2]));
+        copy.setScope(pad(record.getScope(), padLengths[3]));
+        copy.setType(pad(record.getType(), padLengths[4]));
+        copy.setMethodology(pad(record.getMethodology(), padLengths[5]));
+        copy.setRegion(pad(record.getRegion(), padLengths[6]));
+        copy.setCountry(pad(record.getCountry(), padLengths[7]));
+        copy.setState(pad(record.getState(), padLengths[8]));
+        copy.setCreditsIssued(record.getCreditsIssued());
+        copy.setCreditsRetired(record.getCreditsRetired());
+        copy.setCreditsRemaining(record.getCreditsRemaining());
+        copy.setFirstYear(record.getFirstYear());
+        return copy;
+    }
+
+    static String pad(String val, int length) {
+        String stored = new String(val.getBytes(StandardCharsets.ISO_8859_1)); // As decoded from the file
+        return val.length() >= length ? stored : stored + " ".repeat(length - val.length());
+    }
+
+    /*
+     * static Thread compactInBackground -- runs compact on a 
+     * background thread while the program carries on. However 
+     * the program exits, even through System.exit, it first 
+     * waits for the compaction to finish.
+     * 
+     * @return: Thread doing the compaction
+     * @params: File fileRef -- the data file.
+    */
+    static Thread compactInBackground(File fileRef) {
+        Thread compactor = new Thread(() -> compact(fileRef), "compactor");
+        compactor.setDaemon(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "compactor-wait"));
+        compactor.start();
+        return compactor;
+    }
+
+    /*
+     * static void compact -- folds every delta file into the 
+     * data file. The file's records and the live delta records 
+     * are merged in credits issued order in one sequential pass 
+     * into a new file (copying the file's strings as stored 
+     * bytes), which is then re-encoded to keep the file's 
+     * layout. The new file then replaces the data file with 
+     * an atomic rename, after which the delta files and the 
+     * now stale sidecars are deleted. A delta file written 
+     * during the pass is kept.
+     * 
+     * Only one compaction of a file runs at a time: it holds an 
+     * exclusive lock on <file>.compact.lock, and one that can't 
+     * get the lock is skipped. The new file is written to a 
+     * temporary file of its own next to the data file.
+     * 
+     * @return: boolean false if another compaction was running
+     * @params: File fileRef -- the data file.
+    */
+    static boolean compact(File fileRef) {
+        File lockRef = new File(fileRef.getPath() + ".compact.lock"); // Locked by the compaction running
+        try (FileChannel lockChannel = FileChannel.open(lockRef.toPath(), 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (lockChannel.tryLock() == null) {
+                return false;
+            }
+            compactLocked(fileRef);
+            return true; // Closing the channel releases the lock
+        } catch (OverlappingFileLockException e) {
+            return false; // Already compacting in this program
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't lock " + lockRef + ".");
+            return false;
+        }
+    }
+
+    /*
+     * private static void compactLocked -- compact, once the 
+     * lock is held.
+    */
+    private static void compactLocked(File fileRef) {
+        DeltaStore deltas = open(fileRef, null); // Changes to fold in
+        if (deltas.getNumFiles() == 0) {
+            return;
+        }
+
+        File rowRef = null; // New file in the row layout
+        File layoutRef = null; // Columnar or dictionary copy of it
+        boolean columnar; // Whether the data file is in the columnar layout
+        boolean dictionary; // Whether the data file is in the dictionary layout
+        try {
+            Path dir = fileRef.getAbsoluteFile().getParentFile().toPath(); // Where the data file lives
+            rowRef = Files.createTempFile(dir, fileRef.getName() + ".compact.", ".tmp").toFile();
+            RecordReader reader = new RecordReader(fileRef); // The data file as it is now
+            RecordLayout layout = RecordLayout.of(reader); // Where its fields are
+            columnar = RecordLayout.isColumnar(reader);
+            dictionary = RecordLayout.isDictionary(reader);
+            long numRecords = layout.getNumRecords(); // Records in the data file
+
+            // Longer strings in the deltas widen their fields
+            int[] fieldLengths = layout.getFieldLengths().clone(); // Field lengths of the new file
+            int numLive = deltas.lowerBound(Long.MAX_VALUE); // Live delta records
+            for (int d = 0; d < numLive; d++) {
+                BulkLoader.updateFieldLengths(fieldLengths, deltas.getLive(d));
+            }
+            int recordLength = Prog1B.getRecordLength(fieldLengths); // Length of a new record
+
+            RecordView view = new RecordView(reader, layout); // Walks the data file in order
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BulkLoader.WRITE_BUFFER_BYTES); // Output buffer
+            byte[][] fieldBytes = new byte[9][]; // Raw strings of the file's record being copied
+            for (int f = 0; f < 9; f++) {
+                fieldBytes[f] = new byte[layout.getFieldLengths()[f]];
+            }
+
+            try (FileChannel out = FileChannel.open(rowRef.toPath(), StandardOpenOption.CREATE, 
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long i = 0; // Next record of the data file
+                int d = 0; // Next live delta record
+                while (i < numRecords || d < numLive) {
+                    if (buffer.remaining() < recordLength) {
+                        BulkLoader.flush(out, buffer);
+                    }
+                    if (i < numRecords) {
+                        view.moveTo(i);
+                    }
+                    if (d == numLive || (i < numRecords 
+                            && view.getCreditsIssued() <= deltas.getLive(d).getCreditsIssued())) {
+                        i++;
+                        layout.getStringBytes(reader, view.getIndex(), 0, fieldBytes[0]);
+                        if (deltas.shadows(new String(fieldBytes[0], StandardCharsets.ISO_8859_1).stripTrailing())) {
+                            continue;
+                        }
+                        for (int f = 0; f < 9; f++) {
+                            layout.getStringBytes(reader, view.getIndex(), f, fieldBytes[f]);
+                            buffer.put(fieldBytes[f]);
+                            for (int j = fieldBytes[f].length; j < fieldLengths[f]; j++) {
+                                buffer.put((byte) ' ');
+                            }
+                        }
+                        for (int f = RecordLayout.CREDITS_ISSUED; f < RecordLayout.NUM_FIELDS; f++) {
+                            buffer.putInt(view.getInt(f));
+                        }
+                    } else {
+                        deltas.getLive(d++).dumpObject(buffer, fieldLengths);
+                    }
+                }
+                if (buffer.remaining() < 9*4) {
+                    BulkLoader.flush(out, buffer);
+                }
+                for (int length : fieldLengths) {
+                    buffer.putInt(length);
+                }
+                BulkLoader.flush(out, buffer);
+                out.force(true);
+            }
+            reader.close();
+
+            if (columnar || dictionary) {
+                layoutRef = Files.createTempFile(dir, fileRef.getName() + ".compact.", ".tmp").toFile();
+                RecordReader rowReader = new RecordReader(rowRef); // The new file in the row layout
+                if (columnar) {
+                    RecordLayout.writeColumnar(rowReader, layoutRef);
+                } else {
+                    RecordLayout.writeDictionary(rowReader, layoutRef);
+                }
+                rowReader.close();
+                rowRef.delete();
+            }
+            Files.move((columnar || dictionary ? layoutRef : rowRef).toPath(), fileRef.toPath(), 
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't compact the delta files into " + fileRef + ".");
+            if (rowRef != null) {
+                rowRef.delete();
+            }
+            if (layoutRef != null) {
+                layoutRef.delete();
+            }
+            return;
+        }
+
+        for (File deltaRef : deltaFiles(fileRef)) {
+            if (sequence(deltaRef) <= deltas.lastSeq) {
+                deltaRef.delete();
+            }
+        }
+        Sidecar.deleteAll(fileRef);
+    }
+}
+
+/*
+ * HashIndex
+ * 
+ * Persistent hash index over the unique projectId field, 
+ * saved next to the data file as <file>.projectId. The file 
+ * holds an open addressing table of long record numbers 
+ * (stored plus one so that 0 marks an empty slot) with at 
+ * least twice as many slots as records. The table is built in 
+ * memory, so it can have at most MAX_SLOTS slots. It is 
+ * memory-mapped once saved, so a lookup reads a slot or two 
+ * and the record it points at.
+ * 
+ * static HashIndex open(fileRef, dataReader)
+ * long[] lookup(view, projectId)
+ * void close()
+*/
+class HashIndex implements AutoCloseable {
+    static final int MAGIC = 0x4853484C; // "HSHL", marks a hash index file of long record numbers
+    static final int HEADER_BYTES = Sidecar.HEADER_BYTES + 4; // Sidecar header plus the table size
+    static final int MAX_SLOTS = 1 << 30; // Largest table that is built in memory
+
+    private final RecordReader table; // Mapped index file
+    private final int mask; // Table size - 1, the size being a power of two
+
+    private HashIndex(RecordReader table, int mask) {
+        this.table = table;
+        this.mask = mask;
+    }
+
+    /*
+     * static HashIndex open -- maps the projectId index saved 
+     * next to the data file, building it first if it is 
+     * missing or no longer matches the data file.
+     * 
+     * @return: HashIndex over the data file
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+    */
+    static HashIndex open(File fileRef, RecordReader dataReader) {
+        int[] fieldLengths = Prog1B.getFieldLengths(dataReader); // Lengths of string fields in records
+        File indexRef = new File(fileRef.getPath() + ".projectId"); // Sidecar file holding the index
+
+        try {
+            if (!Sidecar.isValid(indexRef, MAGIC, dataReader, fieldLengths)) {
+                build(indexRef, dataReader, fieldLengths);
+            }
+            RecordReader table = new RecordReader(indexRef); // Mapped index file
+            return new HashIndex(table, table.getInt(HEADER_BYTES - 4) - 1);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't build the projectId index.");
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    /*
+     * static void build -- reads the projectId of every record 
+     * and writes the hash table to the index file.
+     * 
+     * @return: none
+     * @params: File indexRef -- the index file to write.
+     * RecordReader dataReader -- the mapped data file.
+     * int[] fieldLengths -- footer field lengths of the data file.
+    */
+    static void build(File indexRef, RecordReader dataReader, int[] fieldLengths) throws IOException {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        long tableSize = Long.highestOneBit(Math.max(8, numRecords) * 2 - 1) * 2; // Power of two >= 2n
+        if (tableSize > MAX_SLOTS) {
+            System.out.println("Error: " + numRecords + " records are too many for the projectId index "
+                + "(at most " + MAX_SLOTS / 2 + ").");
+            System.exit(-1);
+        }
+        int mask = (int) tableSize - 1; // Slot numbers wrap around with this mask
+        long[] slots = new long[(int) tableSize]; // Record number + 1 held by each slot
+
+        RecordView view = new RecordView(dataReader, layout); // Reads each projectId
+        for (long i = 0; i < numRecords; i++) {
+            view.moveTo(i);
+            int slot = hash(view.getProjectId().trim()) & mask; // Slot the id hashes to
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexRef)))) {
+            Sidecar.writeHeader(out, MAGIC, dataReader, fieldLengths);
+            out.writeInt((int) tableSize);
+            for (long slot : slots) {
+                out.writeLong(slot);
+            }
+        }
+    }
+
+    /*
+     * static int hash(String projectId) -- spreads the String 
+     * hash code so that similar ids land far apart.
+    */
+    static int hash(String projectId) {
+        int h = projectId.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * long[] lookup -- finds the record with the given projectId.
+     * 
+     * @return: long[] holding its record number, or empty 
+     *  if there is no such record
+     * @params: RecordView view -- flyweight view over the 
+     *  mapped data file, used to confirm the match.
+     * String projectId -- the id to look for
+    */
+    long[] lookup(RecordView view, String projectId) {
+        int slot = hash(projectId) & mask; // Slot the id hashes to
+        long entry; // Record number + 1 held by the slot
+        while ((entry = table.getLong(HEADER_BYTES + 8L * slot)) != 0) {
+            view.moveTo(entry - 1);
+            if (view.getProjectId().trim().equals(projectId)) {
+                return new long[] {entry - 1};
+            }
+            slot = (slot + 1) & mask;
+        }
+        return new long[0];
+    }
+
+    /*
+     * public void close() -- unmaps the index file.
+    */
+    public void close() {
+        table.close();
+    }
+}
+
+/*
+ * PostingIndex
+ * 
+ * Persistent index over a low-cardinality string field such 
+ * as country, state or status, saved next to the data file 
+ * as <file>.<field>. For every distinct value it keeps a 
+ * posting list of the long record numbers holding that value, 
+ * in file order. The directory of values is read into memory 
+ * and the posting lists are memory-mapped, so a lookup reads 
+ * only the list for the requested value. A lookup returns its 
+ * list as an array, so a list can hold at most MAX_LIST 
+ * record numbers.
+ * 
+ * static PostingIndex open(fileRef, dataReader, field)
+ * long[] lookup(value)
+ * void close()
+*/
+class PostingIndex implements AutoCloseable {
+    static final int MAGIC = 0x5053544C; // "PSTL", marks a posting index file of long record numbers
+    static final int MAX_LIST = Integer.MAX_VALUE - 8; // Longest posting list
+
+    private final RecordReader postings; // Mapped index file
+    private final HashMap<String, long[]> directory; // Value -> {position, count} of its list
+
+    private PostingIndex(RecordReader postings, HashMap<String, long[]> directory) {
+        this.postings = postings;
+        this.directory = directory;
+    }
+
+    /*
+     * static PostingIndex open -- loads the index of the given 
+     * field saved next to the data file, building it first if 
+     * it is missing or no longer matches the data file.
+     * 
+     * @return: PostingIndex over the field
+     * @params: File fileRef -- the data file.
+     * RecordReader dataReader -- the mapped data file.
+     * int field -- footer index of the field to index
+    */
+    static PostingIndex open(File fileRef, RecordReader dataReader, int field) {
+        int[] fieldLengths = Prog1B.getFieldLengths(dataReader); // Lengths of string fields in records
+        File indexRef = new File(fileRef.getPath() + "." + RecordView.FIELD_NAMES[field]); // Sidecar file
+
+        try {
+            if (!Sidecar.isValid(indexRef, MAGIC, dataReader, fieldLengths)) {
+                build(indexRef, dataReader, fieldLengths, field);
+            }
+
+            HashMap<String, long[]> directory = new HashMap<>(); // Where each list is
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexRef)))) {
+                Sidecar.checkHeader(in, MAGIC, dataReader, fieldLengths);
+                int numValues = in.readInt(); // Number of distinct values
+                for (int i = 0; i < numValues; i++) {
+                    String value = in.readUTF();
+                    directory.put(value, new long[] {in.readLong(), in.readInt()});
+                }
+            }
+            return new PostingIndex(new RecordReader(indexRef), directory);
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't build the " + RecordView.FIELD_NAMES[field] + " index.");
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    /*
+     * static void build -- groups the record numbers of every 
+     * record by the value of the field and writes the 
+     * directory followed by the posting lists.
+     * 
+     * @return: none
+     * @params: File indexRef -- the index file to write.
+     * RecordReader dataReader -- the mapped data file.
+     * int[] fieldLengths -- footer field lengths of the data file.
+     * int field -- footer index of the field to index
+    */
+    static void build(File indexRef, RecordReader dataReader, int[] fieldLengths, int field) throws IOException {
+        RecordLayout layout = RecordLayout.of(dataReader); // Where the fields of each record are
+        long numRecords = layout.getNumRecords(); // Number of records in the file
+        TreeMap<String, ArrayList<Long>> lists = new TreeMap<>(); // Record numbers holding each value
+
+        RecordView view = new RecordView(dataReader, layout); // Reads each value
+        for (long i = 0; i < numRecords; i++) {
+            view.moveTo(i);
+            ArrayList<Long> list = lists.computeIfAbsent(view.getString(field).trim(), v -> new ArrayList<>());
+            if (list.size() == MAX_LIST) {
+                System.out.println("Error: more than " + MAX_LIST + " records hold the same " 
+                    + RecordView.FIELD_NAMES[field] + " for its index.");
+                System.exit(-1);
+            }
+            list.add(i);
+        }
+
+        // The lists start right after the header and directory, so work out its size first
+        long position = Sidecar.HEADER_BYTES + 4; // Sidecar header plus the number of values
+        for (String value : lists.keySet()) {
+            position += 2 + value.getBytes("UTF-8").length + 8 + 4;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexRef)))) {
+            Sidecar.writeHeader(out, MAGIC, dataReader, fieldLengths);
+            out.writeInt(lists.size());
+            for (Map.Entry<String, ArrayList<Long>> entry : lists.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(position);
+                out.writeInt(entry.getValue().size());
+                position += 8L * entry.getValue().size();
+            }
+            for (ArrayList<Long> list : lists.values()) {
+                for (long recordNumber : list) {
+                    out.writeLong(recordNumber);
+                }
+            }
+        }
+    }
+
+    /*
+     * long[] lookup -- finds every record holding the given value.
+     * 
+     * @return: long[] holding their record numbers in file order
+     * @params: String value -- the value to look for
+    */
+    long[] lookup(String value) {
+        long[] list = directory.get(value); // Position and length of the list
+        if (list == null) {
+            return new long[0];
+        }
+        long[] matches = new long[(int) list[1]];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = postings.getLong(list[0] + 8L * i);
+        }
+        return matches;
+    }
+
+    /*
+     * public void close() -- unmaps the index file.
+    */
+    public void close() {
+        postings.close();
+    }
+}
+
+/*
+ * Sidecar
+ * 
+ * Helpers for the small files saved next to a data file 
+ * (such as the fence index). Every sidecar starts with a 
+ * header holding a magic number, the data file's length, 
+ * modification time and a CRC32 of its first and last 
+ * CHECK_BYTES, and its footer field lengths, so a sidecar 
+ * left over from an older version of the data file is 
+ * noticed and rebuilt, even when the new file has the same 
+ * length and field lengths.
+ * 
+ * static long[] stamp(dataReader)
+ * static void writeHeader(out, magic, dataReader, fieldLengths)
+ * static boolean checkHeader(in, magic, dataReader, fieldLengths)
+ * static boolean isValid(sidecarRef, magic, dataReader, fieldLengths)
+ * static void deleteAll(fileRef)
+*/
+class Sidecar {
+    static final int CHECK_BYTES = 4096; // Bytes at each end of the data file the checksum covers
+    static final int HEADER_BYTES = 4 + 8 + 8 + 8 + 9*4; // Magic, stamp and field lengths
+
+    /*
+     * static long[] stamp -- what the header records about 
+     * the data file as it is now.
+     * 
+     * @return: long[] holding the length, the modification 
+     *  time in nanoseconds and the checksum of the file
+     * @params: RecordReader dataReader -- the data file.
+    */
+    static long[] stamp(RecordReader dataReader) throws IOException {
+        long length = dataReader.length(); // Length of the data file
+        long modified = Files.getLastModifiedTime(dataReader.getFile().toPath()).to(TimeUnit.NANOSECONDS);
+        CRC32 checksum = new CRC32(); // Covers both ends of the file
+        byte[] head = new byte[(int) Math.min(CHECK_BYTES, length)]; // First bytes of the file
+        dataReader.getBytes(0, head);
+        checksum.update(head);
+        byte[] tail = new byte[head.length]; // Last bytes of the file, holding the footer
+        dataReader.getBytes(length - tail.length, tail);
+        checksum.update(tail);
+        return new long[] {length, modified, checksum.getValue()};
+    }
+
+    /*
+     * static void writeHeader -- writes the header for a 
+     * sidecar of the given kind.
+     * 
+     * @return: none
+     * @params: DataOutputStream out -- the sidecar being written.
+     * int magic -- number identifying the kind of sidecar.
+     * RecordReader dataReader -- the data file.
+     * int[] fieldLengths -- footer field lengths of the data file.
+    */
+    static void writeHeader(DataOutputStream out, int magic, RecordReader dataReader, 
+    int[] fieldLengths) throws IOException {
+        out.writeInt(magic);
+        for (long value : stamp(dataReader)) {
+            out.writeLong(value);
+        }
+        for (int length : fieldLengths) {
+            out.writeInt(length);
+        }
+    }
+
+    /*
+     * static boolean checkHeader -- reads a sidecar header and 
+     * checks that it belongs to the data file as it is now.
+     * 
+     * @return: boolean true if the sidecar can be used
+     * @params: DataInputStream in -- the sidecar being read.
+     * int magic -- number identifying the kind of sidecar.
+     * RecordReader dataReader -- the data file.
+     * int[] fieldLengths -- footer field lengths of the data file.
+    */
+    static boolean checkHeader(DataInputStream in, int magic, RecordReader dataReader, 
+    int[] fieldLengths) throws IOException {
+        if (in.readInt() != magic) {
+            return false;
+        }
+        for (long value : stamp(dataReader)) {
+            if (in.readLong() != value) {
+                return false;
+            }
+        }
+        for (int length : fieldLengths) {
+            if (in.readInt() != length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * static boolean isValid -- checks whether a sidecar file 
+     * exists and its header matches the data file.
+     * 
+     * @return: boolean true if the sidecar can be used
+     * @params: File sidecarRef -- the sidecar file.
+     * int magic -- number identifying the kind of sidecar.
+     * RecordReader dataReader -- the data file.
+     * int[] fieldLengths -- footer field lengths of the data file.
+    */
+    static boolean isValid(File sidecarRef, int magic, RecordReader dataReader, int[] fieldLengths) {
+        if (!sidecarRef.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(sidecarRef)))) {
+            return checkHeader(in, magic, dataReader, fieldLengths);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * static void deleteAll -- deletes every sidecar of a data 
+     * file whose records were replaced, rather than leaving 
+     * the header check to notice.
+     * 
+     * @return: none
+     * @params: File fileRef -- the data file.
+    */
+    static void deleteAll(File fileRef) {
+        new File(fileRef.getPath() + ".idx").delete();
+        new File(fileRef.getPath() + ".zone").delete();
+        for (String fieldName : RecordView.FIELD_NAMES) {
+            new File(fileRef.getPath() + "." + fieldName).delete();
+        }
+    }
+}
+
+/*
+ * RecordReader
+ * 
+ * Read-only view of a binary file created by Prog1A. The 
+ * whole file is mapped into memory once through a FileChannel 
+ * so that looking at a record only touches the pages it lives 
+ * on instead of making a seek and a read call per field.
+ * 
+ * A single MappedByteBuffer can hold at most 2 GB, so the file 
+ * is mapped in segments of SEGMENT_BYTES. Values are read at 
+ * absolute long positions; the few that straddle two segments 
+ * are put together a byte at a time. The reader has no file 
+ * pointer that callers need to move around, so any number of 
+ * threads can read through one reader at once.
+ * 
+ * RecordReader(fileRef) -- maps the given file
+ * RecordReader(fileRef, map) -- opens it, mapping it if asked
+ * RecordReader(fileLength) -- for readers holding bytes in memory
+ * long length()
+ * File getFile()
+ * boolean isMapped()
+ * int getInt(position)
+ * long getLong(position)
+ * int getUnsigned(position, width)
+ * long getBytes(position, dst)
+ * void close()
+*/
+class RecordReader {
+    static final int SEGMENT_SHIFT = 30; // Segments are 1 GB
+    static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT; // Bytes mapped by each segment
+    static final long SEGMENT_MASK = SEGMENT_BYTES - 1; // Offset of a position inside its segment
+
+    protected final FileChannel channel; // Channel the mapping was created from
+    private final MappedByteBuffer[] segments; // Mappings covering the entire file, in order
+    private final long fileLength; // Length of the input file
+    private final File file; // The input file, or null for readers holding bytes in memory
+
+    /*
+     * RecordReader(File fileRef) -- opens the given file read 
+     * only and maps all of it into memory.
+     * 
+     * @params: File fileRef -- the binary file to map.
+    */
+    public RecordReader(File fileRef) throws IOException {
+        this(fileRef, true);
+    }
+
+    /*
+     * RecordReader(File fileRef, boolean map) -- opens the 
+     * given file read only. Subclasses that read through the 
+     * channel themselves pass false and nothing is mapped.
+     * 
+     * @params: File fileRef -- the binary file to open.
+     * boolean map -- whether to map the file into memory
+    */
+    protected RecordReader(File fileRef, boolean map) throws IOException {
+        channel = FileChannel.open(fileRef.toPath(), StandardOpenOption.READ);
+        fileLength = channel.size();
+        file = fileRef;
+        segments = new MappedByteBuffer[map ? (int) ((fileLength + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT) : 0];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i << SEGMENT_SHIFT; // First byte of the segment
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, 
+                Math.min(SEGMENT_BYTES, fileLength - start));
+        }
+    }
+
+    /*
+     * RecordReader(long fileLength) -- opens nothing, for 
+     * subclasses that serve every read from memory they fill 
+     * themselves (see RecordScan).
+     * 
+     * @params: long fileLength -- length of the file they read
+    */
+    protected RecordReader(long fileLength) {
+        channel = null;
+        segments = new MappedByteBuffer[0];
+        this.fileLength = fileLength;
+        this.file = null;
+    }
+
+    /*
+     * public long length() -- the length of the mapped file in bytes.
+    */
+    public long length() { return fileLength; }
+
+    /*
+     * public File getFile() -- the file being read, or null 
+     * for readers holding bytes in memory.
+    */
+    public File getFile() { return file; }
+
+    /*
+     * public boolean isMapped() -- whether reads are served 
+     * from the mapping rather than by reads of the channel.
+    */
+    public boolean isMapped() { return segments.length > 0; }
+
+    /*
+     * public int getInt(long position) -- reads the big-endian 
+     * int (as written by writeInt) stored at the given position.
+    */
+    public int getInt(long position) {
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)]; // Segment holding the first byte
+        int offset = (int) (position & SEGMENT_MASK); // Position inside that segment
+        if (offset <= segment.capacity() - 4) {
+            return segment.getInt(offset);
+        }
+
+        // The int straddles two segments
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (getByte(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /*
+     * public long getLong(long position) -- reads the 
+     * big-endian long (as written by writeLong) stored at the 
+     * given position, as two ints.
+    */
+    public long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    /*
+     * public int getUnsigned(long position, int width) -- reads 
+     * the unsigned big-endian value of 1 or 2 bytes stored at 
+     * the given position, such as a dictionary code.
+    */
+    public int getUnsigned(long position, int width) {
+        if (segments.length == 0) {
+            byte[] value = new byte[width]; // Readers without a mapping copy the bytes out
+            getBytes(position, value);
+            return width == 1 ? value[0] & 0xFF : ((value[0] & 0xFF) << 8) | (value[1] & 0xFF);
+        }
+        if (width == 1) {
+            return getByte(position) & 0xFF;
+        }
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)]; // Segment holding the first byte
+        int offset = (int) (position & SEGMENT_MASK); // Position inside that segment
+        if (offset <= segment.capacity() - 2) {
+            return segment.getShort(offset) & 0xFFFF;
+        }
+        return ((getByte(position) & 0xFF) << 8) | (getByte(position + 1) & 0xFF);
+    }
+
+    /*
+     * private byte getByte(long position) -- reads one byte.
+    */
+    private byte getByte(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    /*
+     * public long getBytes(long position, byte[] dst) -- copies 
+     * dst.length bytes starting at the given position into dst.
+     * 
+     * @return: long holding the position just past the copied bytes
+    */
+    public long getBytes(long position, byte[] dst) {
+        int copied = 0; // Bytes of dst filled so far
+        while (copied < dst.length) {
+            long from = position + copied; // Next byte to copy
+            MappedByteBuffer segment = segments[(int) (from >>> SEGMENT_SHIFT)]; // Segment holding it
+            int offset = (int) (from & SEGMENT_MASK); // Position inside that segment
+            int length = Math.min(dst.length - copied, segment.capacity() - offset); // Bytes left in the segment
+            segment.get(offset, dst, copied, length);
+            copied += length;
+        }
+        return position + dst.length;
+    }
+
+    /*
+     * public void close() -- releases the underlying channel.
+    */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't close the file.");
+        }
+    }
+}
+
+/*
+ * PositionalRecordReader
+ * 
+ * RecordReader that maps nothing and reads every value with 
+ * a positional read (pread) on the shared FileChannel, picked 
+ * with --pread. A positional read never moves the channel's 
+ * file position, so threads don't need a lock around it, and 
+ * files too large to map or on file systems that don't map 
+ * well can still be read. Each call is a system call, so it 
+ * is slower than the mapping for a single thread.
+ * 
+ * PositionalRecordReader(fileRef)
+ * int getInt(position)
+ * long getBytes(position, dst)
+*/
+class PositionalRecordReader extends RecordReader {
+    // Every thread reads ints through its own 4 byte buffer
+    private final ThreadLocal<ByteBuffer> intBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4));
+
+    /*
+     * PositionalRecordReader(File fileRef) -- opens the 
+     * given file read only without mapping it.
+     * 
+     * @params: File fileRef -- the binary file to read.
+    */
+    public PositionalRecordReader(File fileRef) throws IOException {
+        super(fileRef, false);
+    }
+
+    public int getInt(long position) {
+        ByteBuffer intBuffer = intBuffers.get(); // This thread's buffer
+        intBuffer.clear();
+        read(intBuffer, position);
+        return intBuffer.getInt(0);
+    }
+
+    public long getBytes(long position, byte[] dst) {
+        read(ByteBuffer.wrap(dst), position);
+        return position + dst.length;
+    }
+
+    /*
+     * private void read -- fills the buffer from the given 
+     * position with as many positional reads as it takes.
+    */
+    private void read(ByteBuffer dst, long position) {
+        try {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position()) < 0) {
+                    throw new IndexOutOfBoundsException("read past the end of the file");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't read from the file.");
+            System.exit(-1);
+        }
+    }
+}
+
+/*
+ * BufferPool
+ * 
+ * RecordReader that keeps recently used pages of the file in 
+ * a fixed pool of memory, picked with --pool <MB> where the 
+ * file can't (or shouldn't) be mapped. The file is read in 
+ * pages of PAGE_BYTES with positional reads, so the pages 
+ * holding the upper levels of every search and the hot keys 
+ * stay in memory and are not read again.
+ * 
+ * A page is pinned while a value is copied out of it and 
+ * unpinned right after; when the pool is full the least 
+ * recently used unpinned page is evicted. Records have odd 
+ * lengths and don't line up with pages, so a value that 
+ * starts near the end of a page is copied in pieces from the 
+ * pages it spans.
+ * 
+ * The page table is guarded by the pool's lock, but neither 
+ * reading a missing page nor copying out of a pinned one 
+ * happens while holding it. A miss reserves a frame, pinned 
+ * and marked as loading, and reads the page after letting go 
+ * of the lock; threads that want the same page meanwhile wait 
+ * for it to be loaded. A thread that finds every frame pinned 
+ * waits for one to be unpinned. No thread holds a pin while it 
+ * waits, so the wait always ends.
+ * 
+ * BufferPool(fileRef, poolBytes)
+ * int getInt(position)
+ * long getBytes(position, dst)
+ * long getHits()
+ * long getMisses()
+ * long getEvictions()
+*/
+class BufferPool extends RecordReader {
+    static final int PAGE_SHIFT = 13; // Pages are 8 KB
+    static final int PAGE_BYTES = 1 << PAGE_SHIFT; // Bytes in a page
+    static final int MIN_FRAMES = 16; // Smallest pool; more pinning threads wait for a frame
+
+    private final byte[][] frames; // Memory of the pool, one page per frame
+    private final int[] pinCounts; // Number of users of each frame's page
+    private final boolean[] loading; // Whether each frame's page is still being read into it
+    private int waiting; // Threads waiting for a page to load or a frame to be unpinned
+    private final LinkedHashMap<Long, Integer> pageTable; // Page number to frame, least recent first
+    private int framesUsed; // Frames that have held a page
+    private final LongAdder hits = new LongAdder(); // Reads of a page already in the pool
+    private final LongAdder misses = new LongAdder(); // Reads of a page from the file
+    private final LongAdder evictions = new LongAdder(); // Pages dropped to make room
+
+    /*
+     * BufferPool(File fileRef, long poolBytes) -- opens the 
+     * given file read only with an empty pool.
+     * 
+     * @params: File fileRef -- the binary file to read.
+     * long poolBytes -- memory to keep pages in
+    */
+    public BufferPool(File fileRef, long poolBytes) throws IOException {
+        super(fileRef, false);
+        int numFrames = (int) Math.max(MIN_FRAMES, Math.min(Integer.MAX_VALUE / 2, poolBytes >> PAGE_SHIFT));
+        frames = new byte[numFrames][];
+        pinCounts = new int[numFrames];
+        loading = new boolean[numFrames];
+        pageTable = new LinkedHashMap<>(16, 0.75f, true);
+        Metrics.report(() -> String.format("pool     %d pages of %d KB in use, %d hits, %d misses (%.1f%% hits), %d evictions", 
+            framesUsed, PAGE_BYTES >> 10, getHits(), getMisses(), 
+            100.0 * getHits() / Math.max(1, getHits() + getMisses()), getEvictions()));
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+
+    public int getInt(long position) {
+        int offset = (int) (position & (PAGE_BYTES - 1)); // Position inside the page
+        if (offset <= PAGE_BYTES - 4 && position >= 0 && position + 4 <= length()) {
+            int frame = pin(position >>> PAGE_SHIFT); // Frame holding the page
+            byte[] page = frames[frame];
+            int value = ((page[offset] & 0xFF) << 24) | ((page[offset + 1] & 0xFF) << 16) 
+                | ((page[offset + 2] & 0xFF) << 8) | (page[offset + 3] & 0xFF);
+            unpin(frame);
+            return value;
+        }
+
+        // The int spans two pages
+        byte[] intBytes = new byte[4];
+        getBytes(position, intBytes);
+        return ((intBytes[0] & 0xFF) << 24) | ((intBytes[1] & 0xFF) << 16) 
+            | ((intBytes[2] & 0xFF) << 8) | (intBytes[3] & 0xFF);
+    }
+
+    public long getBytes(long position, byte[] dst) {
+        if (position < 0 || position + dst.length > length()) {
+            throw new IndexOutOfBoundsException("read past the end of the file");
+        }
+        int copied = 0; // Bytes of dst filled so far
+        while (copied < dst.length) {
+            long from = position + copied; // Next byte to copy
+            int offset = (int) (from & (PAGE_BYTES - 1)); // Position inside its page
+            int length = Math.min(dst.length - copied, PAGE_BYTES - offset); // Bytes left in the page
+            int frame = pin(from >>> PAGE_SHIFT); // Frame holding the page
+            System.arraycopy(frames[frame], offset, dst, copied, length);
+            unpin(frame);
+            copied += length;
+        }
+        return position + dst.length;
+    }
+
+    /*
+     * private int pin -- finds the page in the pool, reading 
+     * it into a free or evicted frame if it is not there, and 
+     * pins it. The read happens outside the pool's lock.
+     * 
+     * @return: int holding the frame the page is in
+     * @params: long page -- number of the page
+    */
+    private int pin(long page) {
+        int frame; // Frame holding the page
+        boolean interrupted = false; // Whether a wait was interrupted
+        synchronized (this) {
+            while (true) {
+                Integer cached = pageTable.get(page); // Frame of the page, if it is in the pool
+                if (cached != null) {
+                    hits.increment();
+                    pinCounts[cached]++;
+                    while (loading[cached]) {
+                        interrupted |= await();
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return cached;
+                }
+                frame = freeFrame();
+                if (frame >= 0) {
+                    break;
+                }
+                interrupted |= await();
+            }
+            misses.increment();
+            pageTable.put(page, frame);
+            pinCounts[frame]++;
+            loading[frame] = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        ByteBuffer dst = ByteBuffer.wrap(frames[frame]); // The frame being filled
+        long start = page << PAGE_SHIFT; // First byte of the page
+        int pageLength = (int) Math.min(PAGE_BYTES, length() - start); // The last page may be short
+        dst.limit(pageLength);
+        try {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, start + dst.position()) < 0) {
+                    throw new IndexOutOfBoundsException("read past the end of the file");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("I/O ERROR: Couldn't read from the file.");
+            System.exit(-1);
+        }
+
+        synchronized (this) {
+            loading[frame] = false;
+            if (waiting > 0) {
+                notifyAll();
+            }
+        }
+        return frame;
+    }
+
+    /*
+     * private int freeFrame -- takes a frame that has never 
+     * held a page, or else evicts the least recently used 
+     * unpinned page. Called holding the lock.
+     * 
+     * @return: int holding the frame, or -1 if every frame 
+     *  is pinned
+    */
+    private int freeFrame() {
+        if (framesUsed < frames.length) {
+            frames[framesUsed] = new byte[PAGE_BYTES];
+            return framesUsed++;
+        }
+        Iterator<Map.Entry<Long, Integer>> eldest = pageTable.entrySet().iterator(); // Least recent first
+        while (eldest.hasNext()) {
+            int frame = eldest.next().getValue(); // Frame of the next page
+            if (pinCounts[frame] == 0) {
+                eldest.remove();
+                evictions.increment();
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * private boolean await -- waits for a page to be loaded 
+     * or a frame to be unpinned. Called holding the lock.
+     * 
+     * @return: boolean true if the wait was interrupted, for 
+     *  the caller to pass on once it is done
+    */
+    private boolean await() {
+        waiting++;
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /*
+     * private synchronized void unpin -- lets the page in the 
+     * frame be evicted again once nothing else uses it.
+    */
+    private synchronized void unpin(int frame) {
+        if (--pinCounts[frame] == 0 && waiting > 0) {
+            notifyAll();
+        }
+    }
+}
+
+/*
+ * ResultCache
+ * 
+ * Bounded cache of decoded search results, turned on with 
+ * --cache <MB> for interactive searches and --serve, where 
+ * the same keys are asked for over and over. A result is kept 
+ * under its query (min..max, a single value being min == max) 
+ * as the DataRecords that were printed for it, so a repeated 
+ * query is answered without a search and without decoding.
+ * 
+ * Entries are weighed by an estimate of the bytes their 
+ * records take up, and the least recently used entries are 
+ * evicted once the weights pass the capacity. A result weighing 
+ * more than 1/MAX_ENTRY_FRACTION of the capacity isn't kept, so 
+ * one wide range can't flush every hot key; callers check 
+ * admits before collecting one.
+ * 
+ * The cache is stamped with the data file's length, 
+ * modification time and footer field lengths, and every 
+ * lookup compares the length and modification time with the 
+ * file on disk (one stat call). When they differ, for one 
+ * after a background compaction replaced the file, every 
+ * entry is dropped and the cache is stamped again from the 
+ * file now on disk, footer included, and goes on caching. 
+ * Searches keep reading the file as it was opened plus the 
+ * deltas read at start-up, so a result cached after that is 
+ * the same as an uncached search would return.
+ * 
+ * The entries are guarded by the cache's lock, so the server's 
+ * threads share one cache.
+ * 
+ * ResultCache(fileRef, reader, capacityBytes)
+ * boolean admits(numRecords)
+ * DataRecord[] get(min, max)
+ * void put(min, max, matches)
+ * long getHits()
+ * long getMisses()
+ * long getEvictions()
+ * long getInvalidations()
+*/
+class ResultCache {
+    static final int MAX_ENTRY_FRACTION = 8; // Largest entry kept, as a fraction of the capacity
+    static final int ENTRY_BYTES = 96; // Estimated bytes of an entry besides its records
+    static final int RECORD_OVERHEAD_BYTES = 9 * 56 + 40; // Estimated bytes of a DataRecord besides its chars
+
+    private final File fileRef; // Data file the results were read from
+    private final long capacityBytes; // Largest total weight kept
+    private final long recordWeight; // Estimated bytes of one cached DataRecord
+    private final LinkedHashMap<Long, DataRecord[]> entries; // Query to result, least recent first
+    private long weight; // Estimated bytes of every entry
+    private long fileLength; // Length of the data file when the cache was stamped
+    private long modifiedNanos; // Its modification time then
+    private int[] fieldLengths; // Its footer field lengths then, or null if it had none
+    private final LongAdder hits = new LongAdder(); // Lookups answered from the cache
+    private final LongAdder misses = new LongAdder(); // Lookups that had to search
+    private final LongAdder evictions = new LongAdder(); // Entries dropped to make room
+    private final LongAdder invalidations = new LongAdder(); // Times the data file had changed
+
+    /*
+     * ResultCache(File fileRef, RecordReader reader, long capacityBytes) -- 
+     * creates an empty cache for the given data file, stamped 
+     * with its length, modification time and footer.
+     * 
+     * @params: File fileRef -- the data file.
+     * RecordReader reader -- the reader searched, just opened.
+     * long capacityBytes -- estimated bytes the entries may take up
+    */
+    public ResultCache(File fileRef, RecordReader reader, long capacityBytes) {
+        this.fileRef = fileRef;
+        this.capacityBytes = capacityBytes;
+        this.fileLength = reader.length();
+        this.modifiedNanos = stamp()[1];
+        this.fieldLengths = Prog1B.getFieldLengths(reader);
+        this.recordWeight = RECORD_OVERHEAD_BYTES + Prog1B.getRecordLength(fieldLengths);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        Metrics.report(() -> String.format("cache    %d entries of %d KB, %d hits, %d misses (%.1f%% hits), %d evictions, %d invalidations", 
+            entryCount(), totalWeight() >> 10, getHits(), getMisses(), 
+            100.0 * getHits() / Math.max(1, getHits() + getMisses()), getEvictions(), getInvalidations()));
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getInvalidations() { return invalidations.sum(); }
+
+    private synchronized int entryCount() { return entries.size(); }
+    private synchronized long totalWeight() { return weight; }
+
+    /*
+     * public boolean admits(long numRecords) -- whether a result 
+     * of that many records would be kept.
+    */
+    public boolean admits(long numRecords) {
+        return ENTRY_BYTES + numRecords * recordWeight <= capacityBytes / MAX_ENTRY_FRACTION;
+    }
+
+    /*
+     * public DataRecord[] get -- the cached result of a query, 
+     * after dropping every entry if the data file changed.
+     * 
+     * @return: DataRecord[] holding the records printed for the 
+     *  query (empty if none were), or null if it isn't cached
+     * @params: int min -- smallest credits issued value of the query
+     * int max -- largest credits issued value of the query
+    */
+    public DataRecord[] get(int min, int max) {
+        validate();
+        synchronized (this) {
+            DataRecord[] matches = entries.get(key(min, max)); // Cached result, if any
+            (matches == null ? misses : hits).increment();
+            return matches;
+        }
+    }
+
+    /*
+     * public void put -- keeps the result of a query, evicting 
+     * the least recently used entries to make room.
+     * 
+     * @return: none
+     * @params: int min -- smallest credits issued value of the query
+     * int max -- largest credits issued value of the query
+     * DataRecord[] matches -- the records printed for it
+    */
+    public void put(int min, int max, DataRecord[] matches) {
+        if (!admits(matches.length)) {
+            return;
+        }
+        synchronized (this) {
+            insert(min, max, matches);
+        }
+    }
+
+    /*
+     * private void validate -- drops every entry if the data 
+     * file's length or modification time differs from the 
+     * stamp, and stamps the cache again from the file now on 
+     * disk. The footer is only read when the stat differs.
+    */
+    private void validate() {
+        long[] stamp = stamp(); // Length and modification time of the file now
+        synchronized (this) {
+            if (stamp[0] == fileLength && stamp[1] == modifiedNanos) {
+                return;
+            }
+        }
+        int[] footer = footer(); // Field lengths of the file now
+        synchronized (this) {
+            if (stamp[0] != fileLength || stamp[1] != modifiedNanos || !Arrays.equals(footer, fieldLengths)) {
+                invalidations.increment();
+                entries.clear();
+                weight = 0;
+                fileLength = stamp[0];
+                modifiedNanos = stamp[1];
+                fieldLengths = footer;
+            }
+        }
+    }
+
+    /*
+     * private int[] footer -- the footer field lengths of the 
+     * data file on disk, read through a channel of its own 
+     * since the searched mapping never shows a replaced file.
+     * 
+     * @return: int[] holding the field lengths, or null if the 
+     *  file can't be read or is too short to have a footer
+    */
+    private int[] footer() {
+        try {
+            PositionalRecordReader current = new PositionalRecordReader(fileRef); // The file now on disk
+            try {
+                return current.length() < 9*4 ? null : Prog1B.getFieldLengths(current);
+            } finally {
+                current.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * private void insert -- adds an entry and evicts from the 
+     * least recently used end until the weight fits. Called 
+     * holding the lock.
+    */
+    private void insert(int min, int max, DataRecord[] matches) {
+        DataRecord[] previous = entries.put(key(min, max), matches); // Entry it replaces
+        weight += entryWeight(matches) - (previous == null ? 0 : entryWeight(previous));
+        Iterator<Map.Entry<Long, DataRecord[]>> eldest = entries.entrySet().iterator(); // Least recent first
+        while (weight > capacityBytes && eldest.hasNext()) {
+            weight -= entryWeight(eldest.next().getValue());
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /*
+     * private long entryWeight -- estimated bytes of an entry.
+    */
+    private long entryWeight(DataRecord[] matches) {
+        return ENTRY_BYTES + matches.length * recordWeight;
+    }
+
+    /*
+     * private static long key -- the map key of a query.
+    */
+    private static long key(int min, int max) {
+        return ((long) min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    /*
+     * private long[] stamp -- the length and modification time 
+     * of the data file, or -1s if it can't be read.
+    */
+    private long[] stamp() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(fileRef.toPath(), BasicFileAttributes.class);
+            return new long[] {attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)};
+        } catch (IOException e) {
+            return new long[] {-1, -1};
+        }
+    }
+}
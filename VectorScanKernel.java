@@ -0,0 +1,94 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * VectorScanKernel.java -- ScanKernel (see Prog1B.java) built 
+ * on the Vector API of jdk.incubator.vector. It is kept out of 
+ * Prog1B.java so that file still compiles on its own; compile 
+ * both with
+ *   javac --add-modules jdk.incubator.vector Prog1B.java VectorScanKernel.java
+ * and run with java --add-modules jdk.incubator.vector Prog1B. 
+ * Prog1B loads this class by name and falls back to 
+ * ScalarScanKernel when it can't.
+ * 
+ * A first pass loads one vector of every int field column at 
+ * a time, compares the lanes against the bounds of the fields 
+ * the filter limits, and ANDs the comparisons into one mask 
+ * that is stored as the selected flags. A second pass sums one 
+ * field at a time: the lanes left out are blended to 0 and the 
+ * rest widened to two long vectors, so the sums can't 
+ * overflow, and added to a long accumulator that is reduced 
+ * once per batch. The records past the last whole vector are 
+ * tested one at a time, the way ScalarScanKernel tests every 
+ * record, so both kernels give the same results.
+ * 
+ * ScanKernel is reached as a member of Prog1B; the other 
+ * classes of Prog1B.java are private to that file.
+ * 
+ * int filter(columns, count, lows, highs, selected, sums)
+ * String describe()
+*/
+class VectorScanKernel implements Prog1B.ScanKernel {
+    static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED; // Widest int vector of the CPU
+    static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED; // Same size, half as many lanes
+
+    public int filter(int[][] columns, int count, int[] lows, int[] highs, boolean[] selected, long[] sums) {
+        int bound = INTS.loopBound(count); // Records covered by whole vectors
+        int matched = 0; // Records marked so far
+        for (int i = 0; i < bound; i += INTS.length()) {
+            VectorMask<Integer> keep = INTS.maskAll(true); // Lanes within every bound so far
+            for (int f = 0; f < columns.length; f++) {
+                if (lows[f] != Integer.MIN_VALUE || highs[f] != Integer.MAX_VALUE) {
+                    IntVector values = IntVector.fromArray(INTS, columns[f], i); // Field of each lane
+                    keep = keep.and(values.compare(VectorOperators.GE, lows[f]))
+                        .and(values.compare(VectorOperators.LE, highs[f]));
+                }
+            }
+            keep.intoArray(selected, i);
+            matched += keep.trueCount();
+        }
+
+        // Sum one field at a time so the accumulator stays in a register
+        for (int f = 0; f < columns.length && matched > 0; f++) {
+            LongVector total = LongVector.zero(LONGS); // Running sums of the field
+            for (int i = 0; i < bound; i += INTS.length()) {
+                VectorMask<Integer> keep = VectorMask.fromArray(INTS, selected, i); // Lanes marked
+                IntVector values = IntVector.zero(INTS).blend(IntVector.fromArray(INTS, columns[f], i), keep);
+                total = total.add((LongVector) values.convertShape(VectorOperators.I2L, LONGS, 0))
+                    .add((LongVector) values.convertShape(VectorOperators.I2L, LONGS, 1));
+            }
+            sums[f] += total.reduceLanes(VectorOperators.ADD);
+        }
+        return matched + filterTail(columns, bound, count, lows, highs, selected, sums);
+    }
+
+    /*
+     * private static int filterTail -- filter over records from 
+     * up to (not including) to of the batch, one at a time.
+    */
+    private static int filterTail(int[][] columns, int from, int to, int[] lows, int[] highs, 
+            boolean[] selected, long[] sums) {
+        int matched = 0; // Records marked so far
+        for (int i = from; i < to; i++) {
+            boolean keep = true; // Whether every field is within its bounds
+            for (int f = 0; f < columns.length && keep; f++) {
+                keep = columns[f][i] >= lows[f] && columns[f][i] <= highs[f];
+            }
+            selected[i] = keep;
+            if (keep) {
+                matched++;
+                for (int f = 0; f < columns.length; f++) {
+                    sums[f] += columns[f][i];
+                }
+            }
+        }
+        return matched;
+    }
+
+    public String describe() {
+        return "vector, " + INTS.length() + " int lanes";
+    }
+}